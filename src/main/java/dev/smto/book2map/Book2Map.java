@@ -1,10 +1,23 @@
 package dev.smto.book2map;
 
 import dev.smto.book2map.api.CompositeEffect;
+import dev.smto.book2map.content.ColorLookup;
 import dev.smto.book2map.content.Commands;
+import dev.smto.book2map.content.CommitQueue;
 import dev.smto.book2map.content.CompositeEffects;
+import dev.smto.book2map.content.Fonts;
+import dev.smto.book2map.content.LiveBoards;
+import dev.smto.book2map.content.MapPool;
+import dev.smto.book2map.content.Previews;
+import dev.smto.book2map.content.RenderCache;
+import dev.smto.book2map.content.RenderJob;
+import dev.smto.book2map.content.TextureCache;
+import dev.smto.book2map.content.TileIndex;
 import net.fabricmc.api.ModInitializer;
 import net.fabricmc.fabric.api.command.v2.CommandRegistrationCallback;
+import net.fabricmc.fabric.api.event.lifecycle.v1.ServerLifecycleEvents;
+import net.fabricmc.fabric.api.event.lifecycle.v1.ServerTickEvents;
+import net.fabricmc.fabric.api.networking.v1.ServerPlayConnectionEvents;
 import net.fabricmc.loader.api.FabricLoader;
 import org.slf4j.LoggerFactory;
 
@@ -42,6 +55,9 @@ public class Book2Map implements ModInitializer {
 			}
 		}
 
+		// load config
+		Config.load();
+
 		// unpack included fonts
 		var monocraftFile = Path.of(Book2Map.CONFIG_FONTS_DIR.toString(),"Monocraft.ttf");
 		if (!Files.exists(monocraftFile)) {
@@ -68,6 +84,35 @@ public class Book2Map implements ModInitializer {
 			}
 		}
 
+		// nearest color table for quantization, built in the background
+		ColorLookup.init();
+		TextureCache.init();
+		// font index from the last start, refreshed in the background
+		Fonts.init();
+
+		// cached map ids belong to the world that was loaded
+		ServerLifecycleEvents.SERVER_STOPPED.register(_ -> {
+			CommitQueue.clear();
+			RenderCache.unload();
+			TileIndex.unload();
+			LiveBoards.unload();
+			MapPool.unload();
+			Previews.clear();
+		});
+
+		// generated maps are registered a few at a time, live boards follow their lectern, previews vanish
+		ServerTickEvents.END_SERVER_TICK.register(server -> {
+			CommitQueue.tick();
+			LiveBoards.tick(server);
+			Previews.tick(server);
+		});
+
+		// nobody is waiting for these anymore
+		ServerPlayConnectionEvents.DISCONNECT.register((handler, _) -> {
+			RenderJob.cancelAll(handler.getPlayer().getUUID());
+			Previews.remove(handler.getPlayer().getUUID());
+		});
+
 		// register commands
 		CommandRegistrationCallback.EVENT.register((dispatcher, _, _) -> {
 			Commands.register(dispatcher);
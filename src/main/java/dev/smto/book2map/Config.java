@@ -0,0 +1,87 @@
+package dev.smto.book2map;
+
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Properties;
+
+/**
+ * Server options, stored in config/book2map/book2map.properties. Missing options are added with their default value.
+ */
+public class Config {
+    public static final Path CONFIG_FILE = Path.of(Book2Map.CONFIG_BASE_DIR.toString(), "book2map.properties");
+
+    // share maps with identical content between different renders, not just inside one
+    public static boolean dedupeAcrossRenders = true;
+    // threads used for rendering, and how many renders may wait for a free thread
+    public static int renderThreads = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+    public static int renderQueue = 16;
+    // jobs still running after this many seconds are stopped
+    public static int jobTimeoutSeconds = 120;
+    // server thread time per tick spent registering generated maps
+    public static int commitBudgetMicros = 2000;
+    // admission limits, checked against the predicted cost of a render
+    public static int maxTilesPerJob = 64;
+    public static int maxJobsPerPlayer = 2;
+    public static int maxRenderMemoryMb = 1024;
+    // renders with at least this many maps are drawn one row of maps at a time
+    public static int bandedMinMaps = 16;
+    // how often lecterns linked to live boards are checked for a changed book
+    public static int liveCheckTicks = 20;
+    // previews from /b2m preview are shrunk to at most this many maps per side, and removed after this many seconds
+    public static int previewMaxMaps = 2;
+    public static int previewSeconds = 120;
+
+    public static void load() {
+        var properties = new Properties();
+        if (Files.exists(Config.CONFIG_FILE)) {
+            try (Reader reader = Files.newBufferedReader(Config.CONFIG_FILE)) {
+                properties.load(reader);
+            } catch (Exception e) {
+                Book2Map.LOGGER.error("Error while reading config: {}", e.toString());
+            }
+        }
+
+        Config.dedupeAcrossRenders = Config.getBoolean(properties, "dedupe-across-renders", true);
+        Config.renderThreads = Config.getInt(properties, "render-threads", Math.max(1, Runtime.getRuntime().availableProcessors() / 2), 1, 64);
+        Config.renderQueue = Config.getInt(properties, "render-queue", 16, 0, 1024);
+        Config.jobTimeoutSeconds = Config.getInt(properties, "job-timeout-seconds", 120, 1, 3600);
+        Config.commitBudgetMicros = Config.getInt(properties, "commit-budget-us", 2000, 1, 50000);
+        Config.maxTilesPerJob = Config.getInt(properties, "max-maps-per-job", 64, 1, 10000);
+        Config.maxJobsPerPlayer = Config.getInt(properties, "max-jobs-per-player", 2, 1, 100);
+        Config.maxRenderMemoryMb = Config.getInt(properties, "max-render-memory-mb", 1024, 16, 65536);
+        Config.bandedMinMaps = Config.getInt(properties, "banded-min-maps", 16, 1, 10000);
+        Config.liveCheckTicks = Config.getInt(properties, "live-check-ticks", 20, 1, 12000);
+        Config.previewMaxMaps = Config.getInt(properties, "preview-max-maps", 2, 1, 8);
+        Config.previewSeconds = Config.getInt(properties, "preview-seconds", 120, 5, 3600);
+
+        try (Writer writer = Files.newBufferedWriter(Config.CONFIG_FILE)) {
+            properties.store(writer, "book2map options");
+        } catch (Exception e) {
+            Book2Map.LOGGER.error("Error while writing config: {}", e.toString());
+        }
+    }
+
+    private static boolean getBoolean(Properties properties, String key, boolean fallback) {
+        var value = properties.getProperty(key);
+        if (value == null) {
+            properties.setProperty(key, String.valueOf(fallback));
+            return fallback;
+        }
+        return value.trim().equalsIgnoreCase("true");
+    }
+
+    private static int getInt(Properties properties, String key, int fallback, int min, int max) {
+        var value = properties.getProperty(key);
+        if (value != null) {
+            try {
+                return Math.max(min, Math.min(max, Integer.parseInt(value.trim())));
+            } catch (NumberFormatException e) {
+                Book2Map.LOGGER.warn("Invalid value for config option \"{}\": {}", key, value);
+            }
+        }
+        properties.setProperty(key, String.valueOf(fallback));
+        return fallback;
+    }
+}
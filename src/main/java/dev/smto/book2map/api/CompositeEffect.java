@@ -1,6 +1,7 @@
 package dev.smto.book2map.api;
 
 import java.awt.*;
+import java.awt.image.BufferedImage;
 import java.util.List;
 
 public interface CompositeEffect {
@@ -9,4 +10,41 @@ public interface CompositeEffect {
     String getDescription();
 
     String apply(Graphics2D g, CanvasDimensions d, List<String> arguments);
+
+    /**
+     * Called by the compositor. Effects that want to write into the raster directly can override this,
+     * everything else goes through {@link #apply(Graphics2D, CanvasDimensions, List)}.
+     */
+    default String apply(BufferedImage image, Graphics2D g, CanvasDimensions d, List<String> arguments) {
+        return this.apply(g, d, arguments);
+    }
+
+    /**
+     * Called by the banded compositor, which draws large canvases one horizontal strip at a time.
+     * image only holds the rows starting at offsetY, g is already translated and clipped so it can be drawn to with canvas coordinates.
+     * Effects that override {@link #apply(BufferedImage, Graphics2D, CanvasDimensions, List)} have to override this as well.
+     */
+    default String applyBand(BufferedImage image, int offsetY, Graphics2D g, CanvasDimensions d, List<String> arguments) {
+        return this.apply(g, d, arguments);
+    }
+
+    /**
+     * Validates the arguments once, before anything is drawn, and binds them to this effect.
+     * Throws an {@link IllegalArgumentException} with a message for the player if they are invalid.
+     * By default, every argument is accepted and the apply methods of this effect are called with them.
+     */
+    default PreparedEffect compile(CanvasDimensions d, List<String> arguments) {
+        var effect = this;
+        return new PreparedEffect() {
+            public String apply(Graphics2D g) {
+                return effect.apply(g, d, arguments);
+            }
+            public String apply(BufferedImage image, Graphics2D g) {
+                return effect.apply(image, g, d, arguments);
+            }
+            public String applyBand(BufferedImage image, int offsetY, Graphics2D g) {
+                return effect.applyBand(image, offsetY, g, d, arguments);
+            }
+        };
+    }
 }
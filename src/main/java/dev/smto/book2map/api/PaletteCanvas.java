@@ -0,0 +1,152 @@
+package dev.smto.book2map.api;
+
+import eu.pb4.mapcanvas.api.core.DrawableCanvas;
+import eu.pb4.mapcanvas.api.utils.CanvasUtils;
+
+import java.awt.*;
+import java.util.Arrays;
+
+/**
+ * Canvas of raw map color bytes, stored row by row.
+ */
+public final class PaletteCanvas {
+    private final int width;
+    private final int height;
+    private final byte[] data;
+
+    public PaletteCanvas(int width, int height) {
+        this(width, height, new byte[width * height]);
+    }
+
+    public PaletteCanvas(int width, int height, byte[] data) {
+        this.width = width;
+        this.height = height;
+        this.data = data;
+    }
+
+    public static PaletteCanvas from(DrawableCanvas canvas) {
+        var out = new PaletteCanvas(canvas.getWidth(), canvas.getHeight());
+        for (int y = 0; y < out.height; y++) {
+            for (int x = 0; x < out.width; x++) {
+                out.data[x + y * out.width] = canvas.getRaw(x, y);
+            }
+        }
+        return out;
+    }
+
+    /**
+     * Snaps a color to the closest map color.
+     */
+    public static byte snap(Color color) {
+        return CanvasUtils.findClosestRawColor(color.getRGB());
+    }
+
+    public int getWidth() {
+        return this.width;
+    }
+
+    public int getHeight() {
+        return this.height;
+    }
+
+    public byte[] getData() {
+        return this.data;
+    }
+
+    public byte getRaw(int x, int y) {
+        if (x < 0 || y < 0 || x >= this.width || y >= this.height) return 0;
+        return this.data[x + y * this.width];
+    }
+
+    public void setRaw(int x, int y, byte color) {
+        if (x < 0 || y < 0 || x >= this.width || y >= this.height) return;
+        this.data[x + y * this.width] = color;
+    }
+
+    public void fill(byte color) {
+        Arrays.fill(this.data, color);
+    }
+
+    public void fillRect(int x, int y, int width, int height, byte color) {
+        int x1 = Math.max(0, x);
+        int y1 = Math.max(0, y);
+        int x2 = (int) Math.min(this.width, (long) x + width);
+        int y2 = (int) Math.min(this.height, (long) y + height);
+        if (x1 >= x2) return;
+        for (int row = y1; row < y2; row++) {
+            Arrays.fill(this.data, row * this.width + x1, row * this.width + x2, color);
+        }
+    }
+
+    /**
+     * Fills every pixel whose center lies inside the shape.
+     */
+    public void fillShape(Shape shape, byte color) {
+        Rectangle bounds = shape.getBounds().intersection(new Rectangle(0, 0, this.width, this.height));
+        for (int y = bounds.y; y < bounds.y + bounds.height; y++) {
+            for (int x = bounds.x; x < bounds.x + bounds.width; x++) {
+                if (shape.contains(x + 0.5, y + 0.5)) {
+                    this.data[x + y * this.width] = color;
+                }
+            }
+        }
+    }
+
+    /**
+     * Draws a one pixel wide line including both end points. The line is clipped to the canvas first,
+     * so far away end points cost no more than ones on the canvas.
+     */
+    public void drawLine(int x1, int y1, int x2, int y2, byte color) {
+        if (this.width == 0 || this.height == 0) return;
+        // Liang-Barsky, in doubles so the differences of far apart points can't overflow
+        double dx = (double) x2 - x1;
+        double dy = (double) y2 - y1;
+        double[] p = { -dx, dx, -dy, dy };
+        double[] q = { x1, this.width - 1 - (double) x1, y1, this.height - 1 - (double) y1 };
+        double t0 = 0;
+        double t1 = 1;
+        for (int i = 0; i < 4; i++) {
+            if (p[i] == 0) {
+                if (q[i] < 0) return;
+                continue;
+            }
+            double t = q[i] / p[i];
+            if (p[i] < 0) {
+                if (t > t1) return;
+                t0 = Math.max(t0, t);
+            } else {
+                if (t < t0) return;
+                t1 = Math.min(t1, t);
+            }
+        }
+        int cx1 = (int) Math.round(x1 + t0 * dx);
+        int cy1 = (int) Math.round(y1 + t0 * dy);
+        int cx2 = (int) Math.round(x1 + t1 * dx);
+        int cy2 = (int) Math.round(y1 + t1 * dy);
+        this.drawClippedLine(cx1, cy1, cx2, cy2, color);
+    }
+
+    /**
+     * Bresenham, only called with end points on the canvas.
+     */
+    private void drawClippedLine(int x1, int y1, int x2, int y2, byte color) {
+        int dx = Math.abs(x2 - x1);
+        int dy = -Math.abs(y2 - y1);
+        int sx = x1 < x2 ? 1 : -1;
+        int sy = y1 < y2 ? 1 : -1;
+        int error = dx + dy;
+        while (true) {
+            this.setRaw(x1, y1, color);
+            if (x1 == x2 && y1 == y2) break;
+            int e2 = 2 * error;
+            if (e2 >= dy) {
+                error += dy;
+                x1 += sx;
+            }
+            if (e2 <= dx) {
+                error += dx;
+                y1 += sy;
+            }
+        }
+    }
+}
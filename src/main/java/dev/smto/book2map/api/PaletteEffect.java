@@ -0,0 +1,39 @@
+package dev.smto.book2map.api;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.util.List;
+
+/**
+ * Effect that can draw straight into map colors. If every effect of a composition supports this,
+ * the image is built as a {@link PaletteCanvas} and never goes through RGB quantization or dithering.
+ */
+public interface PaletteEffect extends CompositeEffect {
+    String apply(PaletteCanvas canvas, CanvasDimensions d, List<String> arguments);
+
+    default boolean supportsPalette(List<String> arguments) {
+        return true;
+    }
+
+    default PreparedEffect compile(CanvasDimensions d, List<String> arguments) {
+        var effect = this;
+        var base = CompositeEffect.super.compile(d, arguments);
+        return new PalettePreparedEffect() {
+            public String apply(Graphics2D g) {
+                return base.apply(g);
+            }
+            public String apply(BufferedImage image, Graphics2D g) {
+                return base.apply(image, g);
+            }
+            public String applyBand(BufferedImage image, int offsetY, Graphics2D g) {
+                return base.applyBand(image, offsetY, g);
+            }
+            public boolean supportsPalette() {
+                return effect.supportsPalette(arguments);
+            }
+            public String apply(PaletteCanvas canvas) {
+                return effect.apply(canvas, d, arguments);
+            }
+        };
+    }
+}
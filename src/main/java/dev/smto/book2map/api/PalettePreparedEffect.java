@@ -0,0 +1,15 @@
+package dev.smto.book2map.api;
+
+/**
+ * A prepared effect that can also draw straight into map colors, see {@link PaletteEffect}.
+ */
+public interface PalettePreparedEffect extends PreparedEffect {
+    String apply(PaletteCanvas canvas);
+
+    /**
+     * Whether {@link #apply(PaletteCanvas)} can be used with these arguments.
+     */
+    default boolean supportsPalette() {
+        return true;
+    }
+}
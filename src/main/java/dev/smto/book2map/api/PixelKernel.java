@@ -0,0 +1,14 @@
+package dev.smto.book2map.api;
+
+/**
+ * Draws an effect one canvas row at a time, without Graphics2D.
+ * Consecutive kernels are run together in a single pass over the canvas, see {@link PreparedEffect#kernel()}.
+ */
+@FunctionalInterface
+public interface PixelKernel {
+    /**
+     * pixels holds the ARGB colors of canvas row y, including everything drawn below this effect, and is changed in place.
+     * Called for many rows at once from different threads, and only for the rows of the current band when drawing banded.
+     */
+    void apply(int y, int[] pixels);
+}
@@ -0,0 +1,41 @@
+package dev.smto.book2map.api;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+
+/**
+ * An effect bound to its already validated arguments and the canvas dimensions, created by {@link CompositeEffect#compile}.
+ * The methods mirror those of {@link CompositeEffect}, minus the argument parsing. Effects that can also draw into map colors
+ * implement {@link PalettePreparedEffect}.
+ */
+public interface PreparedEffect {
+    String apply(Graphics2D g);
+
+    default String apply(BufferedImage image, Graphics2D g) {
+        return this.apply(g);
+    }
+
+    /**
+     * See {@link CompositeEffect#applyBand}. Has to be overridden together with {@link #apply(BufferedImage, Graphics2D)}.
+     */
+    default String applyBand(BufferedImage image, int offsetY, Graphics2D g) {
+        return this.apply(g);
+    }
+
+    /**
+     * Whether this effect paints every pixel of the canvas with an opaque color.
+     * Everything below such an effect is hidden, so the compositor leaves it out.
+     */
+    default boolean coversCanvas() {
+        return false;
+    }
+
+    /**
+     * Returns this effect as a per-pixel kernel, or null if it needs Graphics2D.
+     * Effects that return a kernel draw exactly what it draws, so the compositor may use either.
+     */
+    default PixelKernel kernel() {
+        return null;
+    }
+
+}
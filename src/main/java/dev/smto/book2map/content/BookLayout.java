@@ -0,0 +1,200 @@
+package dev.smto.book2map.content;
+
+import dev.smto.book2map.api.PaletteCanvas;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.List;
+import net.minecraft.ChatFormatting;
+import net.minecraft.network.chat.TextColor;
+
+/**
+ * Book text parsed into styled runs and measured once. Drawing only replays the stored glyph positions.
+ */
+public final class BookLayout {
+    /**
+     * A piece of text sharing one color, style and size. Offsets are relative to x and must not be modified.
+     */
+    public record Run(String text, Color color, int style, int size, int x, int[] offsets) {
+        public int advance() {
+            return this.offsets[this.text.length()];
+        }
+    }
+
+    public record Line(int baseline, List<Run> runs) {}
+
+    private static final Color[] FORMATTING_COLORS = new Color[ChatFormatting.values().length];
+
+    static {
+        for (ChatFormatting formatting : ChatFormatting.values()) {
+            var c = TextColor.fromLegacyFormat(formatting);
+            if (c != null) {
+                BookLayout.FORMATTING_COLORS[formatting.ordinal()] = new Color(c.getValue());
+            }
+        }
+    }
+
+    private final String font;
+    private final boolean antialiasing;
+    private final List<Line> lines;
+    private final int width;
+    private final int height;
+
+    private BookLayout(String font, boolean antialiasing, List<Line> lines, int width, int height) {
+        this.font = font;
+        this.antialiasing = antialiasing;
+        this.lines = lines;
+        this.width = width;
+        this.height = height;
+    }
+
+    public static BookLayout create(List<String> pages, String font, int size, Color color, int leftOffset, int topOffset, boolean antialiasing, int maxHeight) {
+        var lines = new ArrayList<Line>();
+        int style = Font.PLAIN;
+        int sizeModifier = 0;
+        boolean nextIsTag = false;
+        int lineCount = 0;
+        int y = topOffset;
+        int width = 0;
+
+        master: for (String page : pages) {
+            for (String line : page.split("\n")) {
+                lineCount++;
+                if (lineCount * size > maxHeight) {
+                    break master;
+                }
+
+                // ^^NN size modifier prefix
+                if (line.startsWith("^^")) {
+                    line = line.substring(2);
+                    int digits = 0;
+                    while (digits < 2 && digits < line.length() && Character.isDigit(line.charAt(digits))) {
+                        digits++;
+                    }
+                    if (digits > 0) {
+                        sizeModifier = Integer.parseInt(line.substring(0, digits));
+                        line = line.substring(digits);
+                    }
+                } else sizeModifier = 0;
+
+                int runSize = size + sizeModifier;
+                y += GlyphAtlas.get(font, style, runSize, antialiasing).getLineHeight();
+
+                var runs = new ArrayList<Run>();
+                Color currentColor = color;
+                int x = leftOffset;
+                var text = new StringBuilder();
+                for (int i = 0; i < line.length(); i++) {
+                    char c = line.charAt(i);
+                    if (!nextIsTag) {
+                        if (c == '§') {
+                            nextIsTag = true;
+                        } else {
+                            text.append(c);
+                        }
+                        continue;
+                    }
+                    nextIsTag = false;
+                    var formatting = ChatFormatting.getByCode(c);
+                    if (formatting == null) continue;
+
+                    int newStyle = style;
+                    Color newColor = currentColor;
+                    switch (formatting) {
+                        case BOLD -> newStyle |= Font.BOLD;
+                        case ITALIC -> newStyle |= Font.ITALIC;
+                        case RESET -> {
+                            newColor = color;
+                            newStyle = Font.PLAIN;
+                        }
+                        case UNDERLINE, STRIKETHROUGH, OBFUSCATED -> {
+                            // ignore
+                        }
+                        default -> {
+                            // only colors should remain at this point
+                            var formattingColor = BookLayout.FORMATTING_COLORS[formatting.ordinal()];
+                            if (formattingColor != null) newColor = formattingColor;
+                        }
+                    }
+                    if (newStyle != style || !newColor.equals(currentColor)) {
+                        x = BookLayout.flush(runs, text, font, currentColor, style, runSize, x, antialiasing);
+                        style = newStyle;
+                        currentColor = newColor;
+                    }
+                }
+                x = BookLayout.flush(runs, text, font, currentColor, style, runSize, x, antialiasing);
+                width = Math.max(width, x);
+                lines.add(new Line(y, List.copyOf(runs)));
+            }
+        }
+        return new BookLayout(font, antialiasing, List.copyOf(lines), width, y);
+    }
+
+    private static int flush(List<Run> runs, StringBuilder text, String font, Color color, int style, int size, int x, boolean antialiasing) {
+        if (text.isEmpty()) return x;
+        var content = text.toString();
+        text.setLength(0);
+        var run = new Run(content, color, style, size, x, GlyphAtlas.get(font, style, size, antialiasing).measure(content));
+        runs.add(run);
+        return x + run.advance();
+    }
+
+    public void draw(BufferedImage image) {
+        this.draw(image, 0);
+    }
+
+    /**
+     * Draws into an image that only holds the canvas rows starting at offsetY.
+     */
+    public void draw(BufferedImage image, int offsetY) {
+        for (Line line : this.lines) {
+            for (Run run : line.runs()) {
+                // skip runs far away from the band, glyphs stay well within twice their size of the baseline
+                if (line.baseline() + run.size() * 2 < offsetY || line.baseline() - run.size() * 2 > offsetY + image.getHeight()) continue;
+                var atlas = GlyphAtlas.get(this.font, run.style(), run.size(), this.antialiasing);
+                var text = run.text();
+                var offsets = run.offsets();
+                for (int i = 0; i < text.length(); i++) {
+                    atlas.draw(image, text.charAt(i), run.x() + offsets[i], line.baseline() - offsetY, run.color());
+                }
+            }
+        }
+    }
+
+    public void draw(PaletteCanvas canvas) {
+        for (Line line : this.lines) {
+            for (Run run : line.runs()) {
+                var atlas = GlyphAtlas.get(this.font, run.style(), run.size(), this.antialiasing);
+                var color = PaletteCanvas.snap(run.color());
+                var text = run.text();
+                var offsets = run.offsets();
+                for (int i = 0; i < text.length(); i++) {
+                    atlas.draw(canvas, text.charAt(i), run.x() + offsets[i], line.baseline(), color);
+                }
+            }
+        }
+    }
+
+    public boolean isAntialiased() {
+        return this.antialiasing;
+    }
+
+    public List<Line> getLines() {
+        return this.lines;
+    }
+
+    /**
+     * Right-most pen position of any line.
+     */
+    public int getWidth() {
+        return this.width;
+    }
+
+    /**
+     * Baseline of the last line.
+     */
+    public int getHeight() {
+        return this.height;
+    }
+}
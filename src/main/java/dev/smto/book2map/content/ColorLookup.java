@@ -0,0 +1,157 @@
+package dev.smto.book2map.content;
+
+import dev.smto.book2map.Book2Map;
+import eu.pb4.mapcanvas.api.core.CanvasColor;
+import eu.pb4.mapcanvas.api.utils.CanvasUtils;
+import net.minecraft.world.level.material.MapColor;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.IntStream;
+
+/**
+ * Nearest map color lookup through a precomputed table.
+ * <p>
+ * RGB space is split into 64x64x64 cells. Every cell stores all palette colors that can be the nearest one
+ * for at least one color inside the cell, so a lookup only has to compare a handful of candidates and
+ * still returns exactly what a full palette scan would (including ties, which go to the lowest index).
+ */
+public class ColorLookup {
+    private static final int BITS = 6;
+    private static final int SHIFT = 8 - ColorLookup.BITS;
+    private static final int CELLS = 1 << ColorLookup.BITS;
+    // raw colors below this are map color 0, which is transparent
+    private static final int FIRST_COLOR = 4;
+
+    private static final int[] PALETTE_RGB = new int[256];
+    private static final boolean[] IS_VALID = new boolean[256];
+
+    static {
+        var colors = CanvasColor.values();
+        for (int i = 0; i < Math.min(colors.length, 256); i++) {
+            if (colors[i] != null) {
+                ColorLookup.PALETTE_RGB[i] = colors[i].getRgbColor() & 0xFFFFFF;
+                // unused slots are filled with the transparent color, which map-canvas never picks either
+                ColorLookup.IS_VALID[i] = i >= ColorLookup.FIRST_COLOR && colors[i].getColor() != MapColor.NONE;
+            }
+        }
+    }
+
+    private record Table(int[] offsets, byte[] candidates) {}
+
+    private static volatile Table table = null;
+    private static CompletableFuture<Void> building = null;
+
+    /**
+     * Builds the table in the background. Lookups fall back to map-canvas until it is ready.
+     */
+    public static synchronized void init() {
+        if (ColorLookup.building != null) return;
+        ColorLookup.building = CompletableFuture.runAsync(() -> {
+            long start = System.nanoTime();
+            ColorLookup.table = ColorLookup.build();
+            Book2Map.LOGGER.info("Built color lookup table in {} ms", (System.nanoTime() - start) / 1_000_000);
+        }).exceptionally(e -> {
+            Book2Map.LOGGER.error("Error while building color lookup table: {}", e.toString());
+            return null;
+        });
+    }
+
+    public static int getRgb(byte color) {
+        return ColorLookup.PALETTE_RGB[Byte.toUnsignedInt(color)];
+    }
+
+    public static byte nearestARGB(int argb) {
+        if ((argb >>> 24) == 0) return 0;
+        return ColorLookup.nearest(argb);
+    }
+
+    public static byte nearest(int rgb) {
+        var t = ColorLookup.table;
+        if (t == null) return CanvasUtils.findClosestRawColor(rgb);
+
+        int r = (rgb >> 16) & 0xFF;
+        int g = (rgb >> 8) & 0xFF;
+        int b = rgb & 0xFF;
+        int cell = ((r >> ColorLookup.SHIFT) << (2 * ColorLookup.BITS)) | ((g >> ColorLookup.SHIFT) << ColorLookup.BITS) | (b >> ColorLookup.SHIFT);
+        int start = t.offsets[cell];
+        int end = t.offsets[cell + 1];
+        if (end - start == 1) return t.candidates[start];
+
+        byte best = 0;
+        int bestDistance = Integer.MAX_VALUE;
+        for (int i = start; i < end; i++) {
+            int c = ColorLookup.PALETTE_RGB[Byte.toUnsignedInt(t.candidates[i])];
+            int dr = ((c >> 16) & 0xFF) - r;
+            int dg = ((c >> 8) & 0xFF) - g;
+            int db = (c & 0xFF) - b;
+            int distance = dr * dr + dg * dg + db * db;
+            if (distance < bestDistance) {
+                bestDistance = distance;
+                best = t.candidates[i];
+            }
+        }
+        return best;
+    }
+
+    private static Table build() {
+        int cellCount = ColorLookup.CELLS * ColorLookup.CELLS * ColorLookup.CELLS;
+        byte[][] cells = new byte[cellCount][];
+        int cellSize = 1 << ColorLookup.SHIFT;
+
+        IntStream.range(0, ColorLookup.CELLS).parallel().forEach(rc -> {
+            int[] minDistance = new int[256];
+            byte[] buffer = new byte[256];
+            for (int gc = 0; gc < ColorLookup.CELLS; gc++) {
+                for (int bc = 0; bc < ColorLookup.CELLS; bc++) {
+                    int r1 = rc * cellSize, g1 = gc * cellSize, b1 = bc * cellSize;
+                    int r2 = r1 + cellSize - 1, g2 = g1 + cellSize - 1, b2 = b1 + cellSize - 1;
+
+                    // the closest color is at most this far away from any point in the cell
+                    int threshold = Integer.MAX_VALUE;
+                    for (int i = ColorLookup.FIRST_COLOR; i < 256; i++) {
+                        if (!ColorLookup.IS_VALID[i]) continue;
+                        int c = ColorLookup.PALETTE_RGB[i];
+                        int pr = (c >> 16) & 0xFF, pg = (c >> 8) & 0xFF, pb = c & 0xFF;
+                        minDistance[i] = ColorLookup.square(ColorLookup.outside(pr, r1, r2))
+                                + ColorLookup.square(ColorLookup.outside(pg, g1, g2))
+                                + ColorLookup.square(ColorLookup.outside(pb, b1, b2));
+                        int maxDistance = ColorLookup.square(Math.max(Math.abs(pr - r1), Math.abs(pr - r2)))
+                                + ColorLookup.square(Math.max(Math.abs(pg - g1), Math.abs(pg - g2)))
+                                + ColorLookup.square(Math.max(Math.abs(pb - b1), Math.abs(pb - b2)));
+                        threshold = Math.min(threshold, maxDistance);
+                    }
+
+                    int count = 0;
+                    for (int i = ColorLookup.FIRST_COLOR; i < 256; i++) {
+                        if (ColorLookup.IS_VALID[i] && minDistance[i] <= threshold) {
+                            buffer[count++] = (byte) i;
+                        }
+                    }
+                    byte[] out = new byte[count];
+                    System.arraycopy(buffer, 0, out, 0, count);
+                    cells[(rc << (2 * ColorLookup.BITS)) | (gc << ColorLookup.BITS) | bc] = out;
+                }
+            }
+        });
+
+        int[] offsets = new int[cellCount + 1];
+        for (int i = 0; i < cellCount; i++) {
+            offsets[i + 1] = offsets[i] + cells[i].length;
+        }
+        byte[] candidates = new byte[offsets[cellCount]];
+        for (int i = 0; i < cellCount; i++) {
+            System.arraycopy(cells[i], 0, candidates, offsets[i], cells[i].length);
+        }
+        return new Table(offsets, candidates);
+    }
+
+    private static int outside(int value, int min, int max) {
+        if (value < min) return min - value;
+        if (value > max) return value - max;
+        return 0;
+    }
+
+    private static int square(int value) {
+        return value * value;
+    }
+}
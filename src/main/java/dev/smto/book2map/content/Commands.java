@@ -1,6 +1,8 @@
 package dev.smto.book2map.content;
 
 import com.mojang.brigadier.CommandDispatcher;
+import com.mojang.brigadier.arguments.IntegerArgumentType;
+import dev.smto.book2map.Config;
 import dev.smto.book2map.api.CompositeEffect;
 import net.minecraft.ChatFormatting;
 import net.minecraft.commands.CommandSourceStack;
@@ -11,7 +13,10 @@ import net.minecraft.network.chat.Style;
 import net.minecraft.server.permissions.Permissions;
 import java.awt.*;
 import java.net.URI;
+import java.util.List;
+import java.util.Locale;
 
+import static net.minecraft.commands.Commands.argument;
 import static net.minecraft.commands.Commands.literal;
 public class Commands {
     @SuppressWarnings({"StringConcatenationInsideStringBufferAppend", "StringBufferReplaceableByString"})
@@ -36,6 +41,42 @@ public class Commands {
                             return 1;
                         })
                 )
+                .then(literal("estimate")
+                        .executes(context -> {
+                            if (context.getSource().getPlayer() != null) {
+                                Map.estimateByCommand(context.getSource().getPlayer());
+                                return 0;
+                            }
+                            return 1;
+                        })
+                )
+                .then(literal("preview")
+                        .executes(context -> {
+                            if (context.getSource().getPlayer() != null) {
+                                Map.previewByCommand(context.getSource().getPlayer());
+                                return 0;
+                            }
+                            return 1;
+                        })
+                )
+                .then(literal("link")
+                        .executes(context -> {
+                            if (context.getSource().getPlayer() != null) {
+                                Map.linkByCommand(context.getSource().getPlayer());
+                                return 0;
+                            }
+                            return 1;
+                        })
+                )
+                .then(literal("unlink")
+                        .executes(context -> {
+                            if (context.getSource().getPlayer() != null) {
+                                Map.unlinkByCommand(context.getSource().getPlayer(), context.getSource().permissions().hasPermission(Permissions.COMMANDS_ADMIN));
+                                return 0;
+                            }
+                            return 1;
+                        })
+                )
                 .then(literal("example")
                         .executes(context -> {
                             MutableComponent text = Component.literal(ChatFormatting.GOLD.toString() + ChatFormatting.BOLD + "Book2Map Example" + "\n" + ChatFormatting.RESET);
@@ -69,6 +110,9 @@ public class Commands {
                             b.append("Simply add a line with the name of the setting you want to change, and the value(s) you want to set it to.\n\n");
                             b.append("To see a list of all available options, run " + ChatFormatting.GREEN + "\"/b2m options\"" + ChatFormatting.GOLD + ".\n");
                             b.append("To see a list of all available effects, run " + ChatFormatting.GREEN + "\"/b2m effects\"" + ChatFormatting.GOLD + ".\n");
+                            b.append("To see how expensive your book is before generating it, run " + ChatFormatting.GREEN + "\"/b2m estimate\"" + ChatFormatting.GOLD + ".\n");
+                            b.append("To try out your settings without creating any maps, run " + ChatFormatting.GREEN + "\"/b2m preview\"" + ChatFormatting.GOLD + ".\n");
+                            b.append("To make a wall that updates whenever the book in a lectern changes, look at the lectern and run " + ChatFormatting.GREEN + "\"/b2m link\"" + ChatFormatting.GOLD + ".\n");
                             b.append("\n" + ChatFormatting.GOLD);
                             b.append("Run " + ChatFormatting.GREEN + "\"/b2m example\"" + ChatFormatting.GOLD + " to see an example or to visit the wiki.");
 
@@ -122,21 +166,124 @@ public class Commands {
                             StringBuilder b = new StringBuilder();
                             b.append(ChatFormatting.GOLD.toString() + ChatFormatting.BOLD + "List of installed fonts" + "\n" + ChatFormatting.RESET);
                             b.append("Any of these fonts should be usable with Book2Map:\n");
-                            for (Font font : Fonts.getAvailableFonts()) {
-                                b.append(ChatFormatting.AQUA + font.getFontName() + ChatFormatting.GOLD + "\n");
+                            for (String font : Fonts.getFontNames()) {
+                                b.append(ChatFormatting.AQUA + font + ChatFormatting.GOLD + "\n");
                             }
                             context.getSource().sendSuccess(() -> Component.nullToEmpty(b.toString()), false);
                             return 0;
                         })
                 )
+                .then(literal("jobs")
+                        .executes(context -> {
+                            if (context.getSource().getPlayer() == null) return 1;
+                            Commands.sendJobs(context.getSource(), RenderJob.getJobs(context.getSource().getPlayer().getUUID()), false);
+                            return 0;
+                        })
+                        .then(literal("all")
+                                .requires(s -> s.permissions().hasPermission(Permissions.COMMANDS_ADMIN))
+                                .executes(context -> {
+                                    Commands.sendJobs(context.getSource(), RenderJob.getAll(), true);
+                                    return 0;
+                                })
+                        )
+                )
+                .then(literal("cancel")
+                        .then(argument("id", IntegerArgumentType.integer(1))
+                                .executes(context -> {
+                                    var job = RenderJob.get(IntegerArgumentType.getInteger(context, "id"));
+                                    var player = context.getSource().getPlayer();
+                                    boolean isAdmin = context.getSource().permissions().hasPermission(Permissions.COMMANDS_ADMIN);
+                                    if (job == null || (!isAdmin && (player == null || !job.getOwner().equals(player.getUUID())))) {
+                                        context.getSource().sendFailure(Component.nullToEmpty("No such job!"));
+                                        return 1;
+                                    }
+                                    job.cancel();
+                                    context.getSource().sendSuccess(() -> Component.nullToEmpty(ChatFormatting.GOLD + "Cancelling job #" + job.getId() + "..."), false);
+                                    return 0;
+                                })
+                        )
+                )
+                .then(literal("maps")
+                        .requires(s -> s.permissions().hasPermission(Permissions.COMMANDS_ADMIN))
+                        .executes(context -> {
+                            Commands.sendMapReport(context.getSource());
+                            return 0;
+                        })
+                        .then(literal("scan")
+                                .executes(context -> {
+                                    if (!MapPool.startScan(context.getSource().getServer())) {
+                                        context.getSource().sendFailure(Component.nullToEmpty("A scan is already running!"));
+                                        return 1;
+                                    }
+                                    context.getSource().sendSuccess(() -> Component.nullToEmpty(ChatFormatting.GOLD + "Scanning the world for unused maps, check /b2m maps for the result."), false);
+                                    return 0;
+                                })
+                        )
+                        .then(literal("compact")
+                                .executes(context -> {
+                                    var report = MapPool.getReport();
+                                    if (MapPool.getProgress() != null || report == null || !report.complete()) {
+                                        context.getSource().sendFailure(Component.nullToEmpty("Run a complete scan with /b2m maps scan first!"));
+                                        return 1;
+                                    }
+                                    int reclaimed = MapPool.compact(context.getSource().getServer());
+                                    context.getSource().sendSuccess(() -> Component.nullToEmpty(ChatFormatting.GOLD + "Reclaimed " + reclaimed + " maps, their ids will be used for new maps."), false);
+                                    return 0;
+                                })
+                        )
+                )
                 .then(literal("reload")
                         .requires(s -> s.permissions().hasPermission(Permissions.COMMANDS_ADMIN))
                         .executes(context -> {
+                            Config.load();
+                            RenderExecutor.reconfigure();
                             Fonts.reload();
+                            GlyphAtlas.clear();
+                            TextureCache.warm();
+                            RenderCache.clear();
                             context.getSource().sendSuccess(() -> Component.nullToEmpty(ChatFormatting.GOLD + "Reloaded book2map!"), false);
                             return 0;
                         })
                 )
         );
     }
+
+    private static void sendMapReport(CommandSourceStack source) {
+        StringBuilder b = new StringBuilder();
+        b.append(ChatFormatting.GOLD.toString() + ChatFormatting.BOLD + "Book2Map Maps" + "\n" + ChatFormatting.RESET + ChatFormatting.GOLD);
+        b.append("Free map ids: " + ChatFormatting.GREEN + MapPool.getFree(source.getServer()) + ChatFormatting.GOLD + "\n");
+        var progress = MapPool.getProgress();
+        if (progress != null) {
+            b.append("Scanning, " + ChatFormatting.GREEN + progress[0] + "/" + progress[1] + ChatFormatting.GOLD + " files done.\n");
+        }
+        var report = MapPool.getReport();
+        if (report == null) {
+            b.append("No scan has finished yet, start one with " + ChatFormatting.GREEN + "\"/b2m maps scan\"" + ChatFormatting.GOLD + ".");
+        } else {
+            b.append("Generated maps: " + ChatFormatting.GREEN + report.generated() + ChatFormatting.GOLD + "\n");
+            b.append("Still in use: " + ChatFormatting.GREEN + report.referenced() + ChatFormatting.GOLD + "\n");
+            b.append("Unused: " + ChatFormatting.GREEN + report.orphaned() + ChatFormatting.GOLD + " (" + (report.orphanedBytes() / 1024) + " KiB)\n");
+            b.append("Unused in the last two scans: " + ChatFormatting.GREEN + report.confirmed() + ChatFormatting.GOLD + "\n");
+            if (!report.complete()) {
+                b.append(ChatFormatting.RED + "Some files couldn't be read, so nothing can be reclaimed.");
+            } else if (report.confirmed() > 0) {
+                b.append("Run " + ChatFormatting.GREEN + "\"/b2m maps compact\"" + ChatFormatting.GOLD + " to reclaim them.");
+            } else b.append("Maps are only reclaimed once two scans in a row found them unused.");
+        }
+        source.sendSuccess(() -> Component.nullToEmpty(b.toString()), false);
+    }
+
+    private static void sendJobs(CommandSourceStack source, List<RenderJob> jobs, boolean showOwner) {
+        StringBuilder b = new StringBuilder();
+        b.append(ChatFormatting.GOLD.toString() + ChatFormatting.BOLD + "Book2Map Jobs" + "\n" + ChatFormatting.RESET + ChatFormatting.GOLD);
+        if (jobs.isEmpty()) {
+            b.append("There are no running jobs.");
+        }
+        for (RenderJob job : jobs) {
+            b.append(ChatFormatting.AQUA + "#" + job.getId() + ChatFormatting.GOLD + " - " + ChatFormatting.GREEN + job.getState().name().toLowerCase(Locale.ROOT));
+            if (showOwner) b.append(ChatFormatting.GOLD + " - " + ChatFormatting.GREEN + job.getOwnerName());
+            b.append(ChatFormatting.GOLD + " - " + ChatFormatting.GREEN + (job.getRuntimeMillis() / 1000) + "s\n");
+        }
+        source.sendSuccess(() -> Component.nullToEmpty(b.toString().trim()), false);
+    }
 }
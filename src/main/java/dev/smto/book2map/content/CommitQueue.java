@@ -0,0 +1,90 @@
+package dev.smto.book2map.content;
+
+import dev.smto.book2map.Config;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import net.minecraft.server.level.ServerLevel;
+import net.minecraft.world.item.ItemStack;
+import net.minecraft.world.level.saveddata.maps.MapId;
+
+/**
+ * Registers finished tiles as maps on the server thread, spread over as many ticks as needed to stay within commit-budget-us per tick.
+ */
+public class CommitQueue {
+    private static final ArrayDeque<Commit> QUEUE = new ArrayDeque<>();
+
+    private static class Commit {
+        private final RenderJob job;
+        private final Map.Tiles tiles;
+        private final ServerLevel world;
+        private final boolean exclusive;
+        private final MapId[] ids;
+        private final List<ItemStack> items = new ArrayList<>();
+        private final CompletableFuture<List<ItemStack>> result = new CompletableFuture<>();
+
+        private Commit(RenderJob job, Map.Tiles tiles, ServerLevel world, boolean exclusive) {
+            this.job = job;
+            this.tiles = tiles;
+            this.world = world;
+            this.exclusive = exclusive;
+            this.ids = new MapId[tiles.colors().length];
+        }
+
+        private boolean isDone() {
+            return this.items.size() == this.ids.length;
+        }
+    }
+
+    /**
+     * Has to be called on the server thread. The result is completed on the server thread once all tiles are registered.
+     * Exclusive commits get a new map for every tile, see {@link Map#commitTile}.
+     */
+    public static CompletableFuture<List<ItemStack>> submit(RenderJob job, Map.Tiles tiles, ServerLevel world, boolean exclusive) {
+        var commit = new Commit(job, tiles, world, exclusive);
+        CommitQueue.QUEUE.add(commit);
+        return commit.result;
+    }
+
+    /**
+     * Called at the end of every server tick.
+     */
+    public static void tick() {
+        if (CommitQueue.QUEUE.isEmpty()) return;
+        long end = System.nanoTime() + Config.commitBudgetMicros * 1000L;
+        // always make some progress, even with a tiny budget
+        boolean first = true;
+        while (!CommitQueue.QUEUE.isEmpty() && (first || System.nanoTime() < end)) {
+            var commit = CommitQueue.QUEUE.peek();
+            try {
+                commit.job.checkCancelled();
+                if (!commit.isDone()) {
+                    int i = commit.items.size();
+                    commit.items.add(Map.commitTile(commit.tiles, i, commit.ids, commit.world, commit.exclusive));
+                }
+                first = false;
+                if (commit.isDone()) {
+                    CommitQueue.QUEUE.poll();
+                    MapPool.flush();
+                    commit.result.complete(commit.items);
+                }
+            } catch (Exception e) {
+                CommitQueue.QUEUE.poll();
+                MapPool.flush();
+                commit.result.completeExceptionally(e);
+            }
+        }
+    }
+
+    /**
+     * Called when the server stops.
+     */
+    public static void clear() {
+        while (!CommitQueue.QUEUE.isEmpty()) {
+            CommitQueue.QUEUE.poll().result.completeExceptionally(new CancellationException("Server stopped"));
+        }
+    }
+}
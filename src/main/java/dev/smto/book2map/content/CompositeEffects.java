@@ -3,15 +3,20 @@ package dev.smto.book2map.content;
 import dev.smto.book2map.Book2Map;
 import dev.smto.book2map.api.CanvasDimensions;
 import dev.smto.book2map.api.CompositeEffect;
+import dev.smto.book2map.api.ConfiguredEffect;
+import dev.smto.book2map.api.PaletteCanvas;
+import dev.smto.book2map.api.PaletteEffect;
+import dev.smto.book2map.api.PalettePreparedEffect;
+import dev.smto.book2map.api.PixelKernel;
+import dev.smto.book2map.api.PreparedEffect;
 
-import javax.imageio.ImageIO;
 import java.awt.*;
 import java.awt.geom.Ellipse2D;
 import java.awt.image.BufferedImage;
-import java.nio.file.Files;
-import java.nio.file.Path;
 import java.util.*;
 import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Function;
 
 public class CompositeEffects {
     public static CompositeEffect get(String identifier) {
@@ -24,17 +29,49 @@ public class CompositeEffects {
         return CompositeEffects.INVALID;
     }
 
-    public static CompositeEffect BACKGROUND = new CompositeEffect() {
+    public static CompositeEffect BACKGROUND = new PaletteEffect() {
         public String getIdentifier() {
             return "background";
         }
         public String getDescription() {
             return "fills the background with a solid color";
         }
+        public PreparedEffect compile(CanvasDimensions d, List<String> arguments) {
+            Color color;
+            try {
+                color = Colors.fromString(arguments.getFirst());
+            } catch (Exception e) {
+                throw new IllegalArgumentException("Error while parsing color argument!");
+            }
+            var raw = PaletteCanvas.snap(color);
+            return new PalettePreparedEffect() {
+                public String apply(Graphics2D g) {
+                    g.setColor(color);
+                    g.fillRect(0,0, d.width(), d.height());
+                    return "";
+                }
+                public boolean coversCanvas() {
+                    return color.getAlpha() == 255;
+                }
+                public PixelKernel kernel() {
+                    if (color.getAlpha() != 255) return null;
+                    int argb = color.getRGB();
+                    return (y, pixels) -> Arrays.fill(pixels, argb);
+                }
+                public boolean supportsPalette() {
+                    return true;
+                }
+                public String apply(PaletteCanvas canvas) {
+                    canvas.fill(raw);
+                    return "";
+                }
+            };
+        }
         public String apply(Graphics2D g, CanvasDimensions d, List<String> arguments) {
-            g.setColor(Colors.fromString(arguments.getFirst()));
-            g.fillRect(0,0, d.width(), d.height());
-            return "";
+            return CompositeEffects.applyCompiled(this, d, arguments, op -> op.apply(g));
+        }
+        public String apply(PaletteCanvas canvas, CanvasDimensions d, List<String> arguments) {
+            return CompositeEffects.applyCompiled(this, d, arguments, op -> ((PalettePreparedEffect) op).apply(canvas));
         }
     };
 
@@ -43,47 +80,57 @@ public class CompositeEffects {
             return "background-random";
         }
         public String getDescription() {
-            return "sets the background to a random palette of a given color (or a fully random palette)";
+            return "sets the background to a random palette of a given color (or a fully random palette), with an optional seed";
         }
-        public String apply(Graphics2D g, CanvasDimensions d, List<String> arguments) {
-            var color = arguments.getFirst();
-            Random random = new Random();
-            if (color.isEmpty())
-            {
-                for (int i = 0; i <= d.width()-2; i++) {
-                    for (int k = 0; k <= d.height()-2; k++) {
-                        g.setColor(new Color(random.nextInt(256),random.nextInt(256),random.nextInt(256)));
-                        g.drawLine(i,k,i+1,k+1);
+        public PreparedEffect compile(CanvasDimensions d, List<String> arguments) {
+            var a = RandomArguments.parse(arguments);
+            PixelKernel kernel = (y, pixels) -> {
+                // every row has its own generator, so the result doesn't depend on how rows are scheduled or banded
+                var random = new SplittableRandom(CompositeEffects.rowSeed(a.seed(), y));
+                for (int x = 0; x < pixels.length; x++) {
+                    int rgb;
+                    if (a.fullyRandom()) {
+                        rgb = random.nextInt(0x1000000);
+                    } else {
+                        int Rn = a.r() < 127 ? a.r() + random.nextInt(10) : a.r() - random.nextInt(10);
+                        int Gn = a.g() < 127 ? a.g() + random.nextInt(10) : a.g() - random.nextInt(10);
+                        int Bn = a.b() < 127 ? a.b() + random.nextInt(10) : a.b() - random.nextInt(10);
+                        rgb = (Rn << 16) | (Gn << 8) | Bn;
                     }
+                    pixels[x] = 0xFF000000 | rgb;
                 }
-                return "";
-            }
-            try {
-                var c = Colors.fromString(color);
-                var R = (c.getRed() / 256 / 256) % 256;
-                var G = (c.getGreen() / 256) % 256;
-                var B = c.getBlue() % 256;
-                for (int i = 0; i <= d.width()-2; i++) {
-                    for (int k = 0; k <= d.height()-2; k++) {
-                        int Rn, Gn, Bn;
-                        if (R < 127) {
-                            Rn = R + random.nextInt(10);
-                        } else Rn = R - random.nextInt(10);
-                        if (G < 127) {
-                            Gn = G + random.nextInt(10);
-                        } else Gn = G - random.nextInt(10);
-                        if (B < 127) {
-                            Bn = B + random.nextInt(10);
-                        } else Bn = B - random.nextInt(10);
-                        g.setColor(new Color(Rn,Gn,Bn));
-                        g.drawLine(i,k,i+1,k+1);
-                    }
+            };
+            return new PreparedEffect() {
+                public String apply(Graphics2D g) {
+                    var image = new BufferedImage(d.width(), d.height(), BufferedImage.TYPE_4BYTE_ABGR);
+                    KernelPass.run(image, 0, d, List.of(kernel));
+                    g.drawImage(image, 0, 0, null);
+                    return "";
                 }
-            } catch (Exception e) {
-                Book2Map.LOGGER.warn(e.toString());
-                return "Error while generating random color palette! This is probably a programming issue, so please report it!";
-            }
-            return "";
+                public String apply(BufferedImage image, Graphics2D g) {
+                    KernelPass.run(image, 0, d, List.of(kernel));
+                    return "";
+                }
+                public String applyBand(BufferedImage image, int offsetY, Graphics2D g) {
+                    KernelPass.run(image, offsetY, d, List.of(kernel));
+                    return "";
+                }
+                public PixelKernel kernel() {
+                    return kernel;
+                }
+                public boolean coversCanvas() {
+                    return true;
+                }
+            };
+        }
+        public String apply(Graphics2D g, CanvasDimensions d, List<String> arguments) {
+            return CompositeEffects.applyCompiled(this, d, arguments, op -> op.apply(g));
+        }
+        public String apply(BufferedImage image, Graphics2D g, CanvasDimensions d, List<String> arguments) {
+            return CompositeEffects.applyCompiled(this, d, arguments, op -> op.apply(image, g));
+        }
+        public String applyBand(BufferedImage image, int offsetY, Graphics2D g, CanvasDimensions d, List<String> arguments) {
+            return CompositeEffects.applyCompiled(this, d, arguments, op -> op.applyBand(image, offsetY, g));
         }
     };
 
@@ -94,77 +141,45 @@ public class CompositeEffects {
         public String getDescription() {
             return "sets the background to a texture image";
         }
-        public String apply(Graphics2D g, CanvasDimensions d, List<String> arguments) {
-            // check if pack exists
-            var texture = "";
-            boolean tile = false;
-            int tileSizeMultiplier = 1;
-
-            if (arguments.size() == 1) {
-                texture = arguments.getFirst();
-            }
-            else if (arguments.size() == 2) {
-                texture = arguments.get(0);
-                try {
-                    if (Integer.parseInt(arguments.get(1)) == 1) tile = true;
-                } catch (Exception e) {
-                    tile = Boolean.parseBoolean(arguments.get(1));
-                }
-            }
-            else if (arguments.size() == 3) {
-                texture = arguments.get(0);
-                try {
-                    if (Integer.parseInt(arguments.get(1)) == 1) tile = true;
-                } catch (Exception e) {
-                    tile = Boolean.parseBoolean(arguments.get(1));
-                }
-                try {
-                    tileSizeMultiplier = Integer.parseInt(arguments.get(2));
-                } catch (Exception e) {
-                    return "Error while parsing tile size multiplier argument!";
-                }
-            }
-            Path targetFile = Path.of(Book2Map.CONFIG_TEXTURES_DIR.toString(), texture.trim() + ".png");
-            BufferedImage image = new BufferedImage(32, 32, BufferedImage.TYPE_4BYTE_ABGR);
-            if (Files.exists(targetFile)) {
-                try {
-                    image = ImageIO.read(targetFile.toFile());
-                } catch (Exception e) {
-                    Book2Map.LOGGER.error(e.toString());
-                    return "Error while loading texture! Please check your spelling.";
-                }
-            }
-            else {
-                return "Error while loading texture! Please check your spelling.";
+        public PreparedEffect compile(CanvasDimensions d, List<String> arguments) {
+            var a = BackgroundTextureArguments.parse(arguments);
+            CompositeEffects.checkTexture(a.texture(), "Error while loading texture! Please check your spelling.");
+            boolean opaque;
+            try {
+                opaque = TextureCache.isOpaque(a.texture());
+            } catch (Exception e) {
+                opaque = false;
             }
-            // tile, else fill
-            if (tile) {
-                BufferedImage out = Map.convertToBufferedImage(image.getScaledInstance(image.getWidth() * tileSizeMultiplier, image.getHeight() * tileSizeMultiplier, Image.SCALE_DEFAULT));
-                int wCurrent = 0, hCurrent = 0;
-                while (hCurrent < d.height()) {
-                    while (wCurrent < d.width()) {
-                        g.drawImage(
-                                out,
-                                wCurrent, hCurrent,
-                                out.getWidth(), out.getHeight(),
-                                null);
-                        wCurrent += out.getWidth();
+            boolean finalOpaque = opaque;
+            return new PreparedEffect() {
+                public String apply(Graphics2D g) {
+                    BufferedImage out;
+                    try {
+                        out = a.tile()
+                                ? TextureCache.getTiled(a.texture(), a.multiplier(), d.width(), d.height())
+                                : TextureCache.getScaled(a.texture(), d.width(), d.height());
+                    } catch (Exception e) {
+                        Book2Map.LOGGER.error(e.toString());
+                        return "Error while loading texture! Please check your spelling.";
                     }
-                    wCurrent = 0;
-                    hCurrent += out.getHeight();
-                    if (hCurrent >= d.height()) {
-                        break;
+                    if (out == null) {
+                        return "Error while loading texture! Please check your spelling.";
                     }
+                    // tile, else fill
+                    g.drawImage(out, 0, 0, d.width(), d.height(), null);
+                    return "";
                 }
-            } else {
-                BufferedImage out = Map.convertToBufferedImage(image.getScaledInstance(d.width(), d.height(), Image.SCALE_DEFAULT));
-                g.drawImage(out, 0, 0, d.width(), d.height(), null);
-            }
-
-            return "";
+                public boolean coversCanvas() {
+                    // scaled or tiled, the texture always fills the canvas
+                    return finalOpaque;
+                }
+            };
+        }
+        public String apply(Graphics2D g, CanvasDimensions d, List<String> arguments) {
+            return CompositeEffects.applyCompiled(this, d, arguments, op -> op.apply(g));
         }
     };
-    public static CompositeEffect FRAME = new CompositeEffect() {
+    public static CompositeEffect FRAME = new PaletteEffect() {
         public String getIdentifier() {
             return "frame";
         }
@@ -172,30 +187,63 @@ public class CompositeEffects {
             return "creates a 4 pixel border around the image";
         }
 
-        public String apply(Graphics2D g, CanvasDimensions d, List<String> arguments) {
-            int thickness = 4;
-            Color c = Color.YELLOW;
-            if (arguments.size() == 1) {
-                c = Colors.fromString(arguments.getFirst(), Color.YELLOW);
+        public PreparedEffect compile(CanvasDimensions d, List<String> arguments) {
+            FrameArguments a;
+            try {
+                a = FrameArguments.parse(arguments);
+            } catch (Exception e) {
+                throw new IllegalArgumentException("Error while parsing thickness argument!");
             }
-            else if (arguments.size() == 2) {
-                c = Colors.fromString(arguments.get(0), Color.YELLOW);
-                try {
-                    thickness = Integer.parseInt(arguments.get(1));
-                } catch (Exception e) {
-                    return "Error while parsing thickness argument!";
+            var color = PaletteCanvas.snap(a.color());
+            // the same four rectangles as below, as x, y, width and height
+            int[][] sides = {
+                    {0, 0, d.width()-a.thickness(), a.thickness()},
+                    {0, 0, a.thickness(), d.height()},
+                    {0, d.height()-a.thickness(), d.width(), d.height()-a.thickness()},
+                    {d.width()-a.thickness(), 0, d.width()-a.thickness(), d.height()}
+            };
+            return new PalettePreparedEffect() {
+                public PixelKernel kernel() {
+                    if (a.color().getAlpha() != 255) return null;
+                    int argb = a.color().getRGB();
+                    return (y, pixels) -> {
+                        for (int[] side : sides) {
+                            if (side[2] <= 0 || y < side[1] || y >= side[1] + side[3]) continue;
+                            int from = Math.max(0, side[0]);
+                            int to = Math.min(pixels.length, side[0] + side[2]);
+                            if (from < to) Arrays.fill(pixels, from, to, argb);
+                        }
+                    };
                 }
-            }
-            g.setColor(c);
-            g.fillRect(0,0, d.width()-thickness, thickness); // top left -> top right
-            g.fillRect(0,0, thickness, d.height()); // top left -> bottom left
-            g.fillRect(0,d.height()-thickness, d.width(),d.height()-thickness); // bottom left -> bottom right
-            g.fillRect(d.width()-thickness,0, d.width()-thickness, d.height()); // top right -> bottom right
-            return "";
+                public String apply(Graphics2D g) {
+                    g.setColor(a.color());
+                    g.fillRect(0,0, d.width()-a.thickness(), a.thickness()); // top left -> top right
+                    g.fillRect(0,0, a.thickness(), d.height()); // top left -> bottom left
+                    g.fillRect(0,d.height()-a.thickness(), d.width(),d.height()-a.thickness()); // bottom left -> bottom right
+                    g.fillRect(d.width()-a.thickness(),0, d.width()-a.thickness(), d.height()); // top right -> bottom right
+                    return "";
+                }
+                public boolean supportsPalette() {
+                    return true;
+                }
+                public String apply(PaletteCanvas canvas) {
+                    canvas.fillRect(0,0, d.width()-a.thickness(), a.thickness(), color);
+                    canvas.fillRect(0,0, a.thickness(), d.height(), color);
+                    canvas.fillRect(0,d.height()-a.thickness(), d.width(),d.height()-a.thickness(), color);
+                    canvas.fillRect(d.width()-a.thickness(),0, d.width()-a.thickness(), d.height(), color);
+                    return "";
+                }
+            };
+        }
+        public String apply(Graphics2D g, CanvasDimensions d, List<String> arguments) {
+            return CompositeEffects.applyCompiled(this, d, arguments, op -> op.apply(g));
+        }
+        public String apply(PaletteCanvas canvas, CanvasDimensions d, List<String> arguments) {
+            return CompositeEffects.applyCompiled(this, d, arguments, op -> ((PalettePreparedEffect) op).apply(canvas));
         }
     };
 
-    public static CompositeEffect CIRCLE = new CompositeEffect() {
+    public static CompositeEffect CIRCLE = new PaletteEffect() {
         public String getIdentifier() {
             return "circle";
         }
@@ -203,65 +251,47 @@ public class CompositeEffects {
             return "places a circle on the image";
         }
 
-        public String apply(Graphics2D g, CanvasDimensions d, List<String> arguments) {
-            Color color = Color.YELLOW;
-            int x = 0;
-            int y = 0;
-            int width = d.width();
-            int height = d.height();
-            boolean hollow = false;
-            if (!arguments.isEmpty()) {
-                try {
-                    if (arguments.size() == 1) {
-                        color = Colors.fromString(arguments.getFirst());
-                    }
-                    if (arguments.size() == 2) {
-                        color = Colors.fromString(arguments.get(0));
-                        x = Integer.parseInt(arguments.get(1));
-                    }
-                    if (arguments.size() == 3) {
-                        color = Colors.fromString(arguments.get(0));
-                        x = Integer.parseInt(arguments.get(1));
-                        y = Integer.parseInt(arguments.get(2));
-                    }
-                    if (arguments.size() == 4) {
-                        color = Colors.fromString(arguments.get(0));
-                        x = Integer.parseInt(arguments.get(1));
-                        y = Integer.parseInt(arguments.get(2));
-                        width = Integer.parseInt(arguments.get(3));
-                    }
-                    if (arguments.size() == 5) {
-                        color = Colors.fromString(arguments.get(0));
-                        x = Integer.parseInt(arguments.get(1));
-                        y = Integer.parseInt(arguments.get(2));
-                        width = Integer.parseInt(arguments.get(3));
-                        height = Integer.parseInt(arguments.get(4));
+        public PreparedEffect compile(CanvasDimensions d, List<String> arguments) {
+            ShapeArguments a;
+            try {
+                a = ShapeArguments.parse(arguments, d);
+            } catch (Exception ignored) {
+                throw new IllegalArgumentException("Error while parsing circle arguments! Remember to use this format: <color>,<x>,<y>,<width>,<height>,<hollow?>");
+            }
+            var color = PaletteCanvas.snap(a.color());
+            var shape = new Ellipse2D.Double(a.x(),a.y(),a.width(),a.height());
+            return new PalettePreparedEffect() {
+                public String apply(Graphics2D g) {
+                    g.setRenderingHint(RenderingHints.KEY_STROKE_CONTROL,
+                            RenderingHints.VALUE_STROKE_PURE);
+                    g.setColor(a.color());
+                    g.draw(shape);
+                    if (!a.hollow()) {
+                        g.fill(shape);
                     }
-                    if (arguments.size() == 6) {
-                        color = Colors.fromString(arguments.get(0));
-                        x = Integer.parseInt(arguments.get(1));
-                        y = Integer.parseInt(arguments.get(2));
-                        width = Integer.parseInt(arguments.get(3));
-                        height = Integer.parseInt(arguments.get(4));
-                        hollow = true;
+                    return "";
+                }
+                public boolean supportsPalette() {
+                    return true;
+                }
+                public String apply(PaletteCanvas canvas) {
+                    canvas.fillShape(CompositeEffects.OUTLINE.createStrokedShape(shape), color);
+                    if (!a.hollow()) {
+                        canvas.fillShape(shape, color);
                     }
-                } catch (Exception ignored) {
-                    return "Error while parsing circle arguments! Remember to use this format: <color>,<x>,<y>,<width>,<height>,<hollow?>";
+                    return "";
                 }
-            }
-            g.setRenderingHint(RenderingHints.KEY_STROKE_CONTROL,
-                    RenderingHints.VALUE_STROKE_PURE);
-            g.setColor(color);
-            var shape = new Ellipse2D.Double(x,y,width,height);
-            g.draw(shape);
-            if (!hollow) {
-                g.fill(shape);
-            }
-            return "";
+            };
+        }
+        public String apply(Graphics2D g, CanvasDimensions d, List<String> arguments) {
+            return CompositeEffects.applyCompiled(this, d, arguments, op -> op.apply(g));
+        }
+        public String apply(PaletteCanvas canvas, CanvasDimensions d, List<String> arguments) {
+            return CompositeEffects.applyCompiled(this, d, arguments, op -> ((PalettePreparedEffect) op).apply(canvas));
         }
     };
 
-    public static CompositeEffect RECTANGLE = new CompositeEffect() {
+    public static CompositeEffect RECTANGLE = new PaletteEffect() {
         public String getIdentifier() {
             return "rectangle";
         }
@@ -269,65 +299,50 @@ public class CompositeEffects {
             return "places a rectangle on the image";
         }
 
-        public String apply(Graphics2D g, CanvasDimensions d, List<String> arguments) {
-            Color color = Color.YELLOW;
-            int x = 0;
-            int y = 0;
-            int width = d.width();
-            int height = d.height();
-            boolean hollow = false;
-            if (!arguments.isEmpty()) {
-                try {
-                    if (arguments.size() == 1) {
-                        color = Colors.fromString(arguments.getFirst());
-                    }
-                    if (arguments.size() == 2) {
-                        color = Colors.fromString(arguments.get(0));
-                        x = Integer.parseInt(arguments.get(1));
-                    }
-                    if (arguments.size() == 3) {
-                        color = Colors.fromString(arguments.get(0));
-                        x = Integer.parseInt(arguments.get(1));
-                        y = Integer.parseInt(arguments.get(2));
-                    }
-                    if (arguments.size() == 4) {
-                        color = Colors.fromString(arguments.get(0));
-                        x = Integer.parseInt(arguments.get(1));
-                        y = Integer.parseInt(arguments.get(2));
-                        width = Integer.parseInt(arguments.get(3));
-                    }
-                    if (arguments.size() == 5) {
-                        color = Colors.fromString(arguments.get(0));
-                        x = Integer.parseInt(arguments.get(1));
-                        y = Integer.parseInt(arguments.get(2));
-                        width = Integer.parseInt(arguments.get(3));
-                        height = Integer.parseInt(arguments.get(4));
-                    }
-                    if (arguments.size() == 6) {
-                        color = Colors.fromString(arguments.get(0));
-                        x = Integer.parseInt(arguments.get(1));
-                        y = Integer.parseInt(arguments.get(2));
-                        width = Integer.parseInt(arguments.get(3));
-                        height = Integer.parseInt(arguments.get(4));
-                        hollow = true;
+        public PreparedEffect compile(CanvasDimensions d, List<String> arguments) {
+            ShapeArguments a;
+            try {
+                a = ShapeArguments.parse(arguments, d);
+            } catch (Exception ignored) {
+                throw new IllegalArgumentException("Error while parsing rectangle arguments! Remember to use this format: <color>,<x>,<y>,<width>,<height>,<hollow?>");
+            }
+            var color = PaletteCanvas.snap(a.color());
+            var shape = new Rectangle(a.x(),a.y(),a.width(),a.height());
+            return new PalettePreparedEffect() {
+                public String apply(Graphics2D g) {
+                    g.setRenderingHint(RenderingHints.KEY_STROKE_CONTROL,
+                            RenderingHints.VALUE_STROKE_PURE);
+                    g.setColor(a.color());
+                    g.draw(shape);
+                    if (!a.hollow()) {
+                        g.fill(shape);
                     }
-                } catch (Exception ignored) {
-                    return "Error while parsing rectangle arguments! Remember to use this format: <color>,<x>,<y>,<width>,<height>,<hollow?>";
+                    return "";
                 }
-            }
-            g.setRenderingHint(RenderingHints.KEY_STROKE_CONTROL,
-                    RenderingHints.VALUE_STROKE_PURE);
-            g.setColor(color);
-            var shape = new Rectangle(x,y,width,height);
-            g.draw(shape);
-            if (!hollow) {
-                g.fill(shape);
-            }
-            return "";
+                public boolean supportsPalette() {
+                    return true;
+                }
+                public String apply(PaletteCanvas canvas) {
+                    // a one pixel outline covers width + 1 columns and height + 1 rows, just like Graphics2D.draw
+                    if (a.hollow()) {
+                        canvas.fillRect(a.x(), a.y(), a.width() + 1, 1, color);
+                        canvas.fillRect(a.x(), a.y() + a.height(), a.width() + 1, 1, color);
+                        canvas.fillRect(a.x(), a.y(), 1, a.height() + 1, color);
+                        canvas.fillRect(a.x() + a.width(), a.y(), 1, a.height() + 1, color);
+                    } else canvas.fillRect(a.x(), a.y(), a.width() + 1, a.height() + 1, color);
+                    return "";
+                }
+            };
+        }
+        public String apply(Graphics2D g, CanvasDimensions d, List<String> arguments) {
+            return CompositeEffects.applyCompiled(this, d, arguments, op -> op.apply(g));
+        }
+        public String apply(PaletteCanvas canvas, CanvasDimensions d, List<String> arguments) {
+            return CompositeEffects.applyCompiled(this, d, arguments, op -> ((PalettePreparedEffect) op).apply(canvas));
         }
     };
 
-    public static CompositeEffect LINE = new CompositeEffect() {
+    public static CompositeEffect LINE = new PaletteEffect() {
         public String getIdentifier() {
             return "line";
         }
@@ -335,48 +350,36 @@ public class CompositeEffects {
             return "places a line on the image";
         }
 
-        public String apply(Graphics2D g, CanvasDimensions d, List<String> arguments) {
-            Color color = Color.YELLOW;
-            int x1 = 0;
-            int y1 = 0;
-            int x2 = 32;
-            int y2 = 32;
-            if (!arguments.isEmpty()) {
-                try {
-                    if (arguments.size() == 1) {
-                        color = Colors.fromString(arguments.getFirst());
-                    }
-                    if (arguments.size() == 2) {
-                        color = Colors.fromString(arguments.get(0));
-                        x1 = Integer.parseInt(arguments.get(1));
-                    }
-                    if (arguments.size() == 3) {
-                        color = Colors.fromString(arguments.get(0));
-                        x1 = Integer.parseInt(arguments.get(1));
-                        y1 = Integer.parseInt(arguments.get(2));
-                    }
-                    if (arguments.size() == 4) {
-                        color = Colors.fromString(arguments.get(0));
-                        x1 = Integer.parseInt(arguments.get(1));
-                        y1 = Integer.parseInt(arguments.get(2));
-                        x2 = Integer.parseInt(arguments.get(3));
-                    }
-                    if (arguments.size() == 5) {
-                        color = Colors.fromString(arguments.get(0));
-                        x1 = Integer.parseInt(arguments.get(1));
-                        y1 = Integer.parseInt(arguments.get(2));
-                        x2 = Integer.parseInt(arguments.get(3));
-                        y2 = Integer.parseInt(arguments.get(4));
-                    }
-                } catch (Exception ignored) {
-                    return "Error while parsing line arguments! Remember to use this format: <color>,<x1>,<y1>,<x2>,<y2>";
-                }
+        public PreparedEffect compile(CanvasDimensions d, List<String> arguments) {
+            LineArguments a;
+            try {
+                a = LineArguments.parse(arguments);
+            } catch (Exception ignored) {
+                throw new IllegalArgumentException("Error while parsing line arguments! Remember to use this format: <color>,<x1>,<y1>,<x2>,<y2>");
             }
-            g.setRenderingHint(RenderingHints.KEY_STROKE_CONTROL,
-                    RenderingHints.VALUE_STROKE_PURE);
-            g.setColor(color);
-            g.drawLine(x1, y1, x2, y2);
-            return "";
+            var color = PaletteCanvas.snap(a.color());
+            return new PalettePreparedEffect() {
+                public String apply(Graphics2D g) {
+                    g.setRenderingHint(RenderingHints.KEY_STROKE_CONTROL,
+                            RenderingHints.VALUE_STROKE_PURE);
+                    g.setColor(a.color());
+                    g.drawLine(a.x1(), a.y1(), a.x2(), a.y2());
+                    return "";
+                }
+                public boolean supportsPalette() {
+                    return true;
+                }
+                public String apply(PaletteCanvas canvas) {
+                    canvas.drawLine(a.x1(), a.y1(), a.x2(), a.y2(), color);
+                    return "";
+                }
+            };
+        }
+        public String apply(Graphics2D g, CanvasDimensions d, List<String> arguments) {
+            return CompositeEffects.applyCompiled(this, d, arguments, op -> op.apply(g));
+        }
+        public String apply(PaletteCanvas canvas, CanvasDimensions d, List<String> arguments) {
+            return CompositeEffects.applyCompiled(this, d, arguments, op -> ((PalettePreparedEffect) op).apply(canvas));
         }
     };
 
@@ -388,61 +391,31 @@ public class CompositeEffects {
             return "places a texture on the image";
         }
 
-        public String apply(Graphics2D g, CanvasDimensions d, List<String> arguments) {
-            String texture = "";
-            int x = 0;
-            int y = 0;
-            int width = d.width();
-            int height = d.height();
-            if (!arguments.isEmpty()) {
-                try {
-                    if (arguments.size() == 1) {
-                        texture = arguments.getFirst();
-                    }
-                    if (arguments.size() == 2) {
-                        texture = arguments.get(0);
-                        x = Integer.parseInt(arguments.get(1));
-                    }
-                    if (arguments.size() == 3) {
-                        texture = arguments.get(0);
-                        x = Integer.parseInt(arguments.get(1));
-                        y = Integer.parseInt(arguments.get(2));
-                    }
-                    if (arguments.size() == 4) {
-                        texture = arguments.get(0);
-                        x = Integer.parseInt(arguments.get(1));
-                        y = Integer.parseInt(arguments.get(2));
-                        width = Integer.parseInt(arguments.get(3));
-                    }
-                    if (arguments.size() == 5) {
-                        texture = arguments.get(0);
-                        x = Integer.parseInt(arguments.get(1));
-                        y = Integer.parseInt(arguments.get(2));
-                        width = Integer.parseInt(arguments.get(3));
-                        height = Integer.parseInt(arguments.get(4));
-                    }
-                } catch (Exception ignored) {
-                    return "Error while parsing texture arguments! Remember to use this format: <texture>,<x>,<y>,<width>,<height>";
-                }
+        public PreparedEffect compile(CanvasDimensions d, List<String> arguments) {
+            TextureArguments a;
+            try {
+                a = TextureArguments.parse(arguments, d);
+            } catch (Exception ignored) {
+                throw new IllegalArgumentException("Error while parsing texture arguments! Remember to use this format: <texture>,<x>,<y>,<width>,<height>");
             }
-
-            Path targetFile = Path.of(Book2Map.CONFIG_TEXTURES_DIR.toString(), texture + ".png");
-            BufferedImage image = new BufferedImage(32, 32, BufferedImage.TYPE_4BYTE_ABGR);
-            if (Files.exists(targetFile)) {
+            CompositeEffects.checkTexture(a.texture(), "Specified texture does not exist! Please check your spelling.");
+            return g -> {
+                BufferedImage resized;
                 try {
-                    image = ImageIO.read(targetFile.toFile());
+                    resized = TextureCache.getScaled(a.texture(), a.width(), a.height());
                 } catch (Exception e) {
                     Book2Map.LOGGER.error(e.toString());
                     return "Error while loading texture! This might indicate a server issue.";
                 }
-            }
-            else {
-                return "Specified texture does not exist! Please check your spelling.";
-            }
-            Image resizedImage = image.getScaledInstance(width, height, Image.SCALE_DEFAULT);
-            BufferedImage resized = Map.convertToBufferedImage(resizedImage);
-            g.drawImage(resized, x, y, width, height, null);
-            return "";
+                if (resized == null) {
+                    return "Specified texture does not exist! Please check your spelling.";
+                }
+                g.drawImage(resized, a.x(), a.y(), a.width(), a.height(), null);
+                return "";
+            };
+        }
+        public String apply(Graphics2D g, CanvasDimensions d, List<String> arguments) {
+            return CompositeEffects.applyCompiled(this, d, arguments, op -> op.apply(g));
         }
     };
 
@@ -465,11 +438,197 @@ public class CompositeEffects {
         public String getDescription() {
             return "placeholder for invalid effects";
         }
+        public PreparedEffect compile(CanvasDimensions d, List<String> arguments) {
+            throw new IllegalArgumentException("Invalid effect was specified! Please check your spelling.");
+        }
         public String apply(Graphics2D g, CanvasDimensions d, List<String> arguments) {
             return "Invalid effect was specified! Please check your spelling.";
         }
     };
 
+    /**
+     * Compiles the effect and runs the action on it, or returns the compile error.
+     */
+    private static String applyCompiled(CompositeEffect effect, CanvasDimensions d, List<String> arguments, Function<PreparedEffect, String> action) {
+        PreparedEffect op;
+        try {
+            op = effect.compile(d, arguments);
+        } catch (IllegalArgumentException e) {
+            return e.getMessage();
+        }
+        return action.apply(op);
+    }
+
+    /**
+     * Describes what a built-in effect depends on besides its arguments, for the render cache key.
+     * Returns null if the effect draws something different every time, so the render must not be reused.
+     */
+    static String getDependencies(ConfiguredEffect effect) {
+        var arguments = effect.data();
+        if (effect.effect() == CompositeEffects.BACKGROUND_RANDOM) {
+            // without a seed every render is different
+            return arguments.size() > 1 ? "" : null;
+        }
+        if (effect.effect() == CompositeEffects.BACKGROUND_TEXTURE) {
+            try {
+                return String.valueOf(TextureCache.getModified(BackgroundTextureArguments.parse(arguments).texture()));
+            } catch (IllegalArgumentException e) {
+                return "";
+            }
+        }
+        if (effect.effect() == CompositeEffects.TEXTURE) {
+            return arguments.isEmpty() ? "" : String.valueOf(TextureCache.getModified(arguments.getFirst()));
+        }
+        return "";
+    }
+
+    private static void checkTexture(String texture, String message) {
+        try {
+            if (TextureCache.get(texture) != null) return;
+        } catch (Exception e) {
+            Book2Map.LOGGER.error(e.toString());
+            throw new IllegalArgumentException("Error while loading texture! This might indicate a server issue.");
+        }
+        throw new IllegalArgumentException(message);
+    }
+
+    private static long rowSeed(long seed, int y) {
+        // murmur3 finalizer, neighbouring rows get unrelated seeds
+        long z = seed + y * 0x9E3779B97F4A7C15L;
+        z = (z ^ (z >>> 33)) * 0xFF51AFD7ED558CCDL;
+        z = (z ^ (z >>> 33)) * 0xC4CEB9FE1A85EC53L;
+        return z ^ (z >>> 33);
+    }
+
+    private static final BasicStroke OUTLINE = new BasicStroke(1.0f);
+
+    private record FrameArguments(Color color, int thickness) {
+        static FrameArguments parse(List<String> arguments) {
+            int thickness = 4;
+            Color c = Color.YELLOW;
+            if (arguments.size() == 1) {
+                c = Colors.fromString(arguments.getFirst(), Color.YELLOW);
+            }
+            else if (arguments.size() == 2) {
+                c = Colors.fromString(arguments.get(0), Color.YELLOW);
+                thickness = Integer.parseInt(arguments.get(1));
+            }
+            return new FrameArguments(c, thickness);
+        }
+    }
+
+    private record ShapeArguments(Color color, int x, int y, int width, int height, boolean hollow) {
+        static ShapeArguments parse(List<String> arguments, CanvasDimensions d) {
+            Color color = Color.YELLOW;
+            int x = 0;
+            int y = 0;
+            int width = d.width();
+            int height = d.height();
+            boolean hollow = false;
+            int size = arguments.size();
+            if (size <= 6) {
+                if (size >= 1) color = Colors.fromString(arguments.get(0));
+                if (size >= 2) x = Integer.parseInt(arguments.get(1));
+                if (size >= 3) y = Integer.parseInt(arguments.get(2));
+                if (size >= 4) width = Integer.parseInt(arguments.get(3));
+                if (size >= 5) height = Integer.parseInt(arguments.get(4));
+                if (size == 6) hollow = true;
+            }
+            return new ShapeArguments(color, x, y, width, height, hollow);
+        }
+    }
+
+    private record LineArguments(Color color, int x1, int y1, int x2, int y2) {
+        static LineArguments parse(List<String> arguments) {
+            Color color = Color.YELLOW;
+            int x1 = 0;
+            int y1 = 0;
+            int x2 = 32;
+            int y2 = 32;
+            int size = arguments.size();
+            if (size <= 5) {
+                if (size >= 1) color = Colors.fromString(arguments.get(0));
+                if (size >= 2) x1 = Integer.parseInt(arguments.get(1));
+                if (size >= 3) y1 = Integer.parseInt(arguments.get(2));
+                if (size >= 4) x2 = Integer.parseInt(arguments.get(3));
+                if (size >= 5) y2 = Integer.parseInt(arguments.get(4));
+            }
+            return new LineArguments(color, x1, y1, x2, y2);
+        }
+    }
+
+    private record RandomArguments(boolean fullyRandom, int r, int g, int b, long seed) {
+        static RandomArguments parse(List<String> arguments) {
+            var color = arguments.isEmpty() ? "" : arguments.getFirst();
+            long seed;
+            if (arguments.size() > 1) {
+                try {
+                    seed = Long.parseLong(arguments.get(1).trim());
+                } catch (Exception e) {
+                    throw new IllegalArgumentException("Error while parsing seed argument!");
+                }
+            } else seed = ThreadLocalRandom.current().nextLong();
+
+            if (color.isEmpty()) {
+                return new RandomArguments(true, 0, 0, 0, seed);
+            }
+            try {
+                var c = Colors.fromString(color);
+                return new RandomArguments(false, (c.getRed() / 256 / 256) % 256, (c.getGreen() / 256) % 256, c.getBlue() % 256, seed);
+            } catch (Exception e) {
+                Book2Map.LOGGER.warn(e.toString());
+                throw new IllegalArgumentException("Error while generating random color palette! This is probably a programming issue, so please report it!");
+            }
+        }
+    }
+
+    private record BackgroundTextureArguments(String texture, boolean tile, int multiplier) {
+        static BackgroundTextureArguments parse(List<String> arguments) {
+            var texture = "";
+            boolean tile = false;
+            int tileSizeMultiplier = 1;
+
+            if (arguments.size() == 1) {
+                texture = arguments.getFirst();
+            }
+            else if (arguments.size() == 2 || arguments.size() == 3) {
+                texture = arguments.get(0);
+                try {
+                    if (Integer.parseInt(arguments.get(1)) == 1) tile = true;
+                } catch (Exception e) {
+                    tile = Boolean.parseBoolean(arguments.get(1));
+                }
+            }
+            if (arguments.size() == 3) {
+                try {
+                    tileSizeMultiplier = Integer.parseInt(arguments.get(2));
+                } catch (Exception e) {
+                    throw new IllegalArgumentException("Error while parsing tile size multiplier argument!");
+                }
+            }
+            return new BackgroundTextureArguments(texture.trim(), tile, tileSizeMultiplier);
+        }
+    }
+
+    private record TextureArguments(String texture, int x, int y, int width, int height) {
+        static TextureArguments parse(List<String> arguments, CanvasDimensions d) {
+            String texture = "";
+            int x = 0;
+            int y = 0;
+            int width = d.width();
+            int height = d.height();
+            int size = arguments.size();
+            if (size <= 5) {
+                if (size >= 1) texture = arguments.get(0);
+                if (size >= 2) x = Integer.parseInt(arguments.get(1));
+                if (size >= 3) y = Integer.parseInt(arguments.get(2));
+                if (size >= 4) width = Integer.parseInt(arguments.get(3));
+                if (size >= 5) height = Integer.parseInt(arguments.get(4));
+            }
+            return new TextureArguments(texture, x, y, width, height);
+        }
+    }
+
     private static final HashMap<String, CompositeEffect> OTHER_EFFECTS = new HashMap<>();
 
     public static void registerEffect(CompositeEffect effect) {
@@ -4,44 +4,226 @@ import dev.smto.book2map.Book2Map;
 
 import java.awt.*;
 import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
+/**
+ * Index of the fonts usable in books, by face name and by family.
+ * <p>
+ * The index is stored in config/book2map/font_index.txt, so starting up only reads that file. It is refreshed in the background:
+ * system fonts are listed once per start, files in {@link Book2Map#CONFIG_FONTS_DIR} are only parsed again when they changed.
+ * Font files are registered with Java when a render first uses one of their faces, not before.
+ */
 public class Fonts {
-    private static ArrayList<Font> findAllFonts() {
-        var f = new ArrayList<Font>();
-        var env = GraphicsEnvironment.getLocalGraphicsEnvironment();
+    private static final Path INDEX_FILE = Path.of(Book2Map.CONFIG_BASE_DIR.toString(), "font_index.txt");
+    private static final String DEFAULT_FONT = "Minecraft";
 
-        // user fonts
+    /**
+     * A single font face. file is the name of the file in the fonts folder, or empty for system fonts.
+     */
+    public record Entry(String name, String family, String file, long modified) {}
+
+    private record Index(java.util.Map<String, Entry> byName, java.util.Map<String, List<Entry>> byFamily, List<String> names) {}
+
+    private static final ExecutorService SCANNER = Executors.newSingleThreadExecutor(r -> {
+        var thread = new Thread(r, "book2map-font-index");
+        thread.setDaemon(true);
+        return thread;
+    });
+    // files registered with the graphics environment
+    private static final Set<String> REGISTERED = ConcurrentHashMap.newKeySet();
+    private static volatile Index index = Fonts.createIndex(List.of());
+    private static volatile CompletableFuture<Void> refresh = null;
+
+    /**
+     * Loads the stored index and refreshes it in the background.
+     */
+    public static synchronized void init() {
+        if (Fonts.refresh != null) return;
+        Fonts.index = Fonts.createIndex(Fonts.read());
+        Fonts.refresh = CompletableFuture.runAsync(() -> Fonts.scan(true), Fonts.SCANNER);
+    }
+
+    /**
+     * Looks for new, changed and removed files in the fonts folder, in the background.
+     */
+    public static synchronized void reload() {
+        Fonts.refresh = CompletableFuture.runAsync(() -> Fonts.scan(false), Fonts.SCANNER);
+    }
+
+    /**
+     * Returns the names of all fonts that can be used in books, sorted, without bold and italic faces.
+     */
+    public static List<String> getFontNames() {
+        return Fonts.getIndex().names();
+    }
+
+    public static String getDefaultFont() {
+        var current = Fonts.getIndex();
+        var entry = current.byName().get(Fonts.DEFAULT_FONT.toLowerCase(Locale.ROOT));
+        if (entry != null) return entry.name();
+        return current.names().isEmpty() ? Font.DIALOG : current.names().getFirst();
+    }
+
+    /**
+     * Identifies the files behind a face or family name by their modification times, empty for system fonts.
+     */
+    public static String getVersion(String name) {
+        var faces = Fonts.getFaces(name);
+        var version = new StringBuilder();
+        for (Entry face : faces) {
+            if (!face.file().isEmpty()) version.append(face.file()).append('@').append(face.modified()).append(';');
+        }
+        return version.toString();
+    }
+
+    /**
+     * Makes sure a font with this face or family name can be created, by registering the files of its family on first use.
+     */
+    public static void load(String name) {
+        var faces = Fonts.getFaces(name);
+        for (Entry face : faces) {
+            if (face.file().isEmpty() || !Fonts.REGISTERED.add(face.file())) continue;
+            var file = Path.of(Book2Map.CONFIG_FONTS_DIR.toString(), face.file()).toFile();
+            try {
+                GraphicsEnvironment.getLocalGraphicsEnvironment().registerFont(Font.createFont(Font.TRUETYPE_FONT, file));
+            } catch (Exception e) {
+                Book2Map.LOGGER.error("Error while loading user font \"{}\": {}", file.getName(), e.toString());
+            }
+        }
+    }
+
+    /**
+     * Returns all faces of the family a face or family name belongs to.
+     */
+    private static List<Entry> getFaces(String name) {
+        var current = Fonts.getIndex();
+        var entry = current.byName().get(name.toLowerCase(Locale.ROOT));
+        var family = (entry != null ? entry.family() : name).toLowerCase(Locale.ROOT);
+        return current.byFamily().getOrDefault(family, entry != null ? List.of(entry) : List.of());
+    }
+
+    /**
+     * Returns the current index. Only waits for the scan if there was no stored index to start with.
+     */
+    private static Index getIndex() {
+        var current = Fonts.index;
+        var pending = Fonts.refresh;
+        if (current.byName().isEmpty() && pending != null) {
+            pending.join();
+            current = Fonts.index;
+        }
+        return current;
+    }
+
+    private static void scan(boolean system) {
+        var previous = Fonts.index;
+        var known = new HashMap<String, List<Entry>>();
+        for (Entry entry : previous.byName().values()) {
+            if (!entry.file().isEmpty()) known.computeIfAbsent(entry.file(), _ -> new ArrayList<>()).add(entry);
+        }
+
+        // user fonts, only files that are new or changed are parsed
+        var entries = new ArrayList<Entry>();
+        boolean changed = false;
         var userFontFiles = Book2Map.CONFIG_FONTS_DIR.toFile().listFiles();
         if (userFontFiles != null) {
             for (File file : userFontFiles) {
-                if (Fonts.isFontFile(file)) {
-                    try {
-                        env.registerFont(Font.createFont(Font.TRUETYPE_FONT, file));
-                    } catch (Exception e) {
-                        Book2Map.LOGGER.error("Error while loading user font \"{}\": {}", file.getName(), e.toString());
-                    }
-                }
-                else {
+                if (!Fonts.isFontFile(file)) {
                     Book2Map.LOGGER.warn("Found non-font file \"{}\"", file.getName());
+                    continue;
+                }
+                long modified = file.lastModified();
+                var faces = known.remove(file.getName());
+                if (faces != null && faces.getFirst().modified() == modified) {
+                    entries.addAll(faces);
+                    continue;
+                }
+                changed = true;
+                // registered again the next time it is used
+                Fonts.REGISTERED.remove(file.getName());
+                try {
+                    var font = Font.createFont(Font.TRUETYPE_FONT, file);
+                    entries.add(new Entry(font.getFontName(), font.getFamily(), file.getName(), modified));
+                } catch (Exception e) {
+                    Book2Map.LOGGER.error("Error while loading user font \"{}\": {}", file.getName(), e.toString());
                 }
             }
         }
+        // removed files
+        if (!known.isEmpty()) changed = true;
 
-        // system fonts
-        var fonts = env.getAllFonts();
-        for (Font font : fonts) {
-            if (!font.getFontName().contains("Bold") && !font.getFontName().contains("Italic")) {
-                f.add(font);
+        // system fonts, registered user fonts show up here as well
+        var userNames = new HashMap<String, Entry>();
+        entries.forEach(entry -> userNames.put(entry.name().toLowerCase(Locale.ROOT), entry));
+        if (system) {
+            for (Font font : GraphicsEnvironment.getLocalGraphicsEnvironment().getAllFonts()) {
+                if (userNames.containsKey(font.getFontName().toLowerCase(Locale.ROOT))) continue;
+                entries.add(new Entry(font.getFontName(), font.getFamily(), "", 0));
+            }
+            changed = true;
+        } else {
+            for (Entry entry : previous.byName().values()) {
+                if (entry.file().isEmpty() && !userNames.containsKey(entry.name().toLowerCase(Locale.ROOT))) entries.add(entry);
             }
         }
 
-        return f;
+        if (!changed) return;
+        Fonts.index = Fonts.createIndex(entries);
+        GlyphAtlas.clear();
+        Fonts.write(entries);
+    }
+
+    private static Index createIndex(List<Entry> entries) {
+        var byName = new HashMap<String, Entry>();
+        var byFamily = new HashMap<String, List<Entry>>();
+        for (Entry entry : entries) {
+            byName.putIfAbsent(entry.name().toLowerCase(Locale.ROOT), entry);
+            byFamily.computeIfAbsent(entry.family().toLowerCase(Locale.ROOT), _ -> new ArrayList<>()).add(entry);
+        }
+        var names = byName.values().stream()
+                .map(Entry::name)
+                .filter(name -> !name.contains("Bold") && !name.contains("Italic"))
+                .sorted(String.CASE_INSENSITIVE_ORDER)
+                .toList();
+        return new Index(java.util.Map.copyOf(byName), java.util.Map.copyOf(byFamily), names);
+    }
+
+    private static List<Entry> read() {
+        if (!Files.exists(Fonts.INDEX_FILE)) return List.of();
+        var entries = new ArrayList<Entry>();
+        try {
+            for (String line : Files.readAllLines(Fonts.INDEX_FILE)) {
+                var parts = line.split("\t", -1);
+                if (parts.length != 4) continue;
+                entries.add(new Entry(parts[0], parts[1], parts[2], Long.parseLong(parts[3])));
+            }
+        } catch (Exception e) {
+            Book2Map.LOGGER.error("Error while loading font index: {}", e.toString());
+            return List.of();
+        }
+        return entries;
     }
-    private static ArrayList<Font> availableFonts = Fonts.findAllFonts();
 
-    public static void reload() {
-        Fonts.availableFonts = Fonts.findAllFonts();
+    private static void write(List<Entry> entries) {
+        var lines = new ArrayList<String>();
+        for (Entry entry : entries) {
+            lines.add(entry.name() + "\t" + entry.family() + "\t" + entry.file() + "\t" + entry.modified());
+        }
+        try {
+            Files.write(Fonts.INDEX_FILE, lines);
+        } catch (Exception e) {
+            Book2Map.LOGGER.error("Error while saving font index: {}", e.toString());
+        }
     }
 
     private static boolean isFontFile(File file) {
@@ -53,9 +235,4 @@ public class Fonts {
         if (name.substring(lastIndexOf).equals(".ttf")) return true;
         return name.substring(lastIndexOf).equals(".otf");
     }
-
-    public static ArrayList<Font> getAvailableFonts() {
-        return Fonts.availableFonts;
-    }
 }
-
@@ -0,0 +1,195 @@
+package dev.smto.book2map.content;
+
+import dev.smto.book2map.api.PaletteCanvas;
+
+import java.awt.*;
+import java.awt.font.FontRenderContext;
+import java.awt.font.GlyphVector;
+import java.awt.font.TextAttribute;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.util.Collections;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Caches rasterized glyphs per (font, style, size, anti-aliasing) so text can be blitted straight into a canvas raster.
+ * Atlases are kept across renders and only dropped on reload.
+ */
+public class GlyphAtlas {
+    private static final int MAX_ATLASES = 64;
+    private static final ConcurrentHashMap<Key, GlyphAtlas> ATLASES = new ConcurrentHashMap<>();
+
+    public static GlyphAtlas get(String font, int style, int size, boolean antialiasing) {
+        var key = new Key(font, style, size, antialiasing);
+        var atlas = GlyphAtlas.ATLASES.get(key);
+        if (atlas != null) return atlas;
+        if (GlyphAtlas.ATLASES.size() >= GlyphAtlas.MAX_ATLASES) {
+            GlyphAtlas.ATLASES.clear();
+        }
+        return GlyphAtlas.ATLASES.computeIfAbsent(key, GlyphAtlas::new);
+    }
+
+    public static void clear() {
+        GlyphAtlas.ATLASES.clear();
+    }
+
+    private record Key(String font, int style, int size, boolean antialiasing) {}
+
+    /**
+     * Coverage mask of a single glyph, positioned relative to the pen position on the baseline.
+     */
+    public record Glyph(byte[] mask, int width, int height, int offsetX, int offsetY, int advance) {}
+
+    private final Font font;
+    private final Font kerningFont;
+    private final boolean antialiasing;
+    private final FontRenderContext context;
+    private final FontMetrics metrics;
+    private final int lineHeight;
+    private final ConcurrentHashMap<Character, Glyph> glyphs = new ConcurrentHashMap<>();
+
+    private GlyphAtlas(Key key) {
+        Fonts.load(key.font());
+        this.font = new Font(key.font(), key.style(), key.size());
+        this.kerningFont = this.font.deriveFont(Collections.singletonMap(TextAttribute.KERNING, TextAttribute.KERNING_ON));
+        this.antialiasing = key.antialiasing();
+        this.context = new FontRenderContext(null, key.antialiasing(), false);
+        var scratch = new BufferedImage(1, 1, BufferedImage.TYPE_BYTE_GRAY).createGraphics();
+        this.metrics = scratch.getFontMetrics(this.font);
+        // line height always uses the bold variant, so mixed styles on one line stay aligned
+        this.lineHeight = scratch.getFontMetrics(this.font.deriveFont(Font.BOLD)).getHeight();
+        scratch.dispose();
+    }
+
+    public Font getFont() {
+        return this.font;
+    }
+
+    public int getLineHeight() {
+        return this.lineHeight;
+    }
+
+    public Glyph getGlyph(char c) {
+        return this.glyphs.computeIfAbsent(c, this::rasterize);
+    }
+
+    /**
+     * Measures a run of text including kerning. The result holds the pen offset of every character
+     * relative to the start of the run, followed by the total advance.
+     */
+    public int[] measure(String text) {
+        char[] chars = text.toCharArray();
+        int[] offsets = new int[chars.length + 1];
+        for (int i = 0; i < chars.length; i++) {
+            offsets[i + 1] = offsets[i] + this.getGlyph(chars[i]).advance();
+        }
+        if (chars.length == 0) return offsets;
+
+        GlyphVector vector = this.kerningFont.layoutGlyphVector(this.context, chars, 0, chars.length, Font.LAYOUT_LEFT_TO_RIGHT);
+        int glyphs = vector.getNumGlyphs();
+        for (int i = 0; i < glyphs; i++) {
+            int index = vector.getGlyphCharIndex(i);
+            if (index >= 0 && index < chars.length) {
+                offsets[index] = (int) Math.round(vector.getGlyphPosition(i).getX());
+            }
+        }
+        offsets[chars.length] = (int) Math.round(vector.getGlyphPosition(glyphs).getX());
+        return offsets;
+    }
+
+    private Glyph rasterize(char c) {
+        int advance = this.metrics.charWidth(c);
+        GlyphVector vector = this.font.createGlyphVector(this.context, String.valueOf(c));
+        Rectangle bounds = vector.getPixelBounds(this.context, 0, 0);
+        if (bounds.isEmpty()) {
+            return new Glyph(new byte[0], 0, 0, 0, 0, advance);
+        }
+        var image = new BufferedImage(bounds.width, bounds.height, BufferedImage.TYPE_BYTE_GRAY);
+        Graphics2D g = image.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, this.antialiasing ? RenderingHints.VALUE_TEXT_ANTIALIAS_ON : RenderingHints.VALUE_TEXT_ANTIALIAS_OFF);
+        g.setColor(Color.WHITE);
+        g.drawGlyphVector(vector, -bounds.x, -bounds.y);
+        g.dispose();
+        byte[] mask = ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
+        return new Glyph(mask, bounds.width, bounds.height, bounds.x, bounds.y, advance);
+    }
+
+    /**
+     * Blends a glyph into the image with the given color and returns the pen advance.
+     */
+    public int draw(BufferedImage image, char c, int x, int y, Color color) {
+        var glyph = this.getGlyph(c);
+        if (glyph.width() == 0) return glyph.advance();
+
+        int startX = Math.max(0, -(x + glyph.offsetX()));
+        int startY = Math.max(0, -(y + glyph.offsetY()));
+        int endX = Math.min(glyph.width(), image.getWidth() - (x + glyph.offsetX()));
+        int endY = Math.min(glyph.height(), image.getHeight() - (y + glyph.offsetY()));
+        if (startX >= endX || startY >= endY) return glyph.advance();
+
+        int r = color.getRed();
+        int gr = color.getGreen();
+        int b = color.getBlue();
+        byte[] mask = glyph.mask();
+
+        if (image.getType() == BufferedImage.TYPE_4BYTE_ABGR) {
+            byte[] data = ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
+            int width = image.getWidth();
+            for (int gy = startY; gy < endY; gy++) {
+                int row = ((y + glyph.offsetY() + gy) * width + x + glyph.offsetX()) * 4;
+                int maskRow = gy * glyph.width();
+                for (int gx = startX; gx < endX; gx++) {
+                    int a = mask[maskRow + gx] & 0xFF;
+                    if (a == 0) continue;
+                    int i = row + gx * 4;
+                    if (a == 255) {
+                        data[i] = (byte) 255;
+                        data[i + 1] = (byte) b;
+                        data[i + 2] = (byte) gr;
+                        data[i + 3] = (byte) r;
+                        continue;
+                    }
+                    int inv = 255 - a;
+                    data[i] = (byte) (a + ((data[i] & 0xFF) * inv + 127) / 255);
+                    data[i + 1] = (byte) ((b * a + (data[i + 1] & 0xFF) * inv + 127) / 255);
+                    data[i + 2] = (byte) ((gr * a + (data[i + 2] & 0xFF) * inv + 127) / 255);
+                    data[i + 3] = (byte) ((r * a + (data[i + 3] & 0xFF) * inv + 127) / 255);
+                }
+            }
+        } else {
+            for (int gy = startY; gy < endY; gy++) {
+                for (int gx = startX; gx < endX; gx++) {
+                    int a = mask[gy * glyph.width() + gx] & 0xFF;
+                    if (a == 0) continue;
+                    int px = x + glyph.offsetX() + gx;
+                    int py = y + glyph.offsetY() + gy;
+                    int dst = image.getRGB(px, py);
+                    int inv = 255 - a;
+                    int outA = a + (((dst >>> 24) & 0xFF) * inv + 127) / 255;
+                    int outR = (r * a + ((dst >> 16) & 0xFF) * inv + 127) / 255;
+                    int outG = (gr * a + ((dst >> 8) & 0xFF) * inv + 127) / 255;
+                    int outB = (b * a + (dst & 0xFF) * inv + 127) / 255;
+                    image.setRGB(px, py, (outA << 24) | (outR << 16) | (outG << 8) | outB);
+                }
+            }
+        }
+        return glyph.advance();
+    }
+
+    /**
+     * Writes the covered pixels of a glyph as a single map color and returns the pen advance.
+     * Only meant for glyphs rasterized without anti-aliasing.
+     */
+    public int draw(PaletteCanvas canvas, char c, int x, int y, byte color) {
+        var glyph = this.getGlyph(c);
+        byte[] mask = glyph.mask();
+        for (int gy = 0; gy < glyph.height(); gy++) {
+            for (int gx = 0; gx < glyph.width(); gx++) {
+                if ((mask[gy * glyph.width() + gx] & 0xFF) >= 128) {
+                    canvas.setRaw(x + glyph.offsetX() + gx, y + glyph.offsetY() + gy, color);
+                }
+            }
+        }
+        return glyph.advance();
+    }
+}
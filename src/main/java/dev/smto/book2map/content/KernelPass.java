@@ -0,0 +1,132 @@
+package dev.smto.book2map.content;
+
+import dev.smto.book2map.api.CanvasDimensions;
+import dev.smto.book2map.api.PaletteCanvas;
+import dev.smto.book2map.api.PalettePreparedEffect;
+import dev.smto.book2map.api.PixelKernel;
+import dev.smto.book2map.api.PreparedEffect;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.IntStream;
+
+/**
+ * Runs per-pixel effects straight on the raster. Each row is read once, handed to every kernel in order and written back,
+ * so a chain of kernels costs one sweep over the canvas instead of one per effect.
+ */
+public class KernelPass {
+    private static final int ROWS_PER_TASK = 16;
+
+    /**
+     * Runs the kernels on image, which holds the canvas rows starting at offsetY.
+     */
+    public static void run(BufferedImage image, int offsetY, CanvasDimensions d, List<PixelKernel> kernels) {
+        int width = Math.min(d.width(), image.getWidth());
+        int height = Math.max(0, Math.min(d.height() - offsetY, image.getHeight()));
+        boolean direct = image.getType() == BufferedImage.TYPE_4BYTE_ABGR;
+        byte[] data = direct ? ((DataBufferByte) image.getRaster().getDataBuffer()).getData() : null;
+        int tasks = (height + KernelPass.ROWS_PER_TASK - 1) / KernelPass.ROWS_PER_TASK;
+        IntStream.range(0, tasks).parallel().forEach(task -> {
+            int[] pixels = new int[width];
+            int end = Math.min(height, (task + 1) * KernelPass.ROWS_PER_TASK);
+            for (int y = task * KernelPass.ROWS_PER_TASK; y < end; y++) {
+                int row = y * image.getWidth() * 4;
+                if (direct) {
+                    for (int x = 0, i = row; x < width; x++, i += 4) {
+                        pixels[x] = (data[i] & 0xFF) << 24 | (data[i + 3] & 0xFF) << 16 | (data[i + 2] & 0xFF) << 8 | (data[i + 1] & 0xFF);
+                    }
+                } else image.getRGB(0, y, width, 1, pixels, 0, width);
+
+                for (PixelKernel kernel : kernels) {
+                    kernel.apply(offsetY + y, pixels);
+                }
+
+                if (direct) {
+                    for (int x = 0, i = row; x < width; x++, i += 4) {
+                        int argb = pixels[x];
+                        data[i] = (byte) (argb >>> 24);
+                        data[i + 1] = (byte) argb;
+                        data[i + 2] = (byte) (argb >> 8);
+                        data[i + 3] = (byte) (argb >> 16);
+                    }
+                } else image.setRGB(0, y, width, 1, pixels, 0, width);
+            }
+        });
+    }
+
+    /**
+     * Replaces every run of two or more consecutive effects that have a kernel with a single effect drawing them in one pass.
+     */
+    public static void fuse(List<PreparedEffect> operations, CanvasDimensions d) {
+        var fused = new ArrayList<PreparedEffect>();
+        var group = new ArrayList<PreparedEffect>();
+        for (PreparedEffect operation : operations) {
+            if (operation.kernel() != null) {
+                group.add(operation);
+                continue;
+            }
+            KernelPass.flush(group, fused, d);
+            fused.add(operation);
+        }
+        KernelPass.flush(group, fused, d);
+        operations.clear();
+        operations.addAll(fused);
+    }
+
+    private static void flush(List<PreparedEffect> group, List<PreparedEffect> out, CanvasDimensions d) {
+        if (group.size() == 1) {
+            out.add(group.getFirst());
+        } else if (group.size() > 1) {
+            out.add(KernelPass.combine(List.copyOf(group), d));
+        }
+        group.clear();
+    }
+
+    static boolean supportsPalette(PreparedEffect operation) {
+        return operation instanceof PalettePreparedEffect palette && palette.supportsPalette();
+    }
+
+    private static PreparedEffect combine(List<PreparedEffect> group, CanvasDimensions d) {
+        var kernels = group.stream().map(PreparedEffect::kernel).toList();
+        return new PalettePreparedEffect() {
+            public String apply(Graphics2D g) {
+                for (PreparedEffect operation : group) {
+                    var r = operation.apply(g);
+                    if (!r.isEmpty()) return r;
+                }
+                return "";
+            }
+            public String apply(BufferedImage image, Graphics2D g) {
+                KernelPass.run(image, 0, d, kernels);
+                return "";
+            }
+            public String applyBand(BufferedImage image, int offsetY, Graphics2D g) {
+                KernelPass.run(image, offsetY, d, kernels);
+                return "";
+            }
+            public PixelKernel kernel() {
+                return (y, pixels) -> {
+                    for (PixelKernel kernel : kernels) {
+                        kernel.apply(y, pixels);
+                    }
+                };
+            }
+            public boolean coversCanvas() {
+                return group.stream().anyMatch(PreparedEffect::coversCanvas);
+            }
+            public boolean supportsPalette() {
+                return group.stream().allMatch(KernelPass::supportsPalette);
+            }
+            public String apply(PaletteCanvas canvas) {
+                for (PreparedEffect operation : group) {
+                    var r = ((PalettePreparedEffect) operation).apply(canvas);
+                    if (!r.isEmpty()) return r;
+                }
+                return "";
+            }
+        };
+    }
+}
@@ -0,0 +1,215 @@
+package dev.smto.book2map.content;
+
+import dev.smto.book2map.Book2Map;
+import dev.smto.book2map.Config;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.List;
+import net.minecraft.core.BlockPos;
+import net.minecraft.core.registries.Registries;
+import net.minecraft.resources.Identifier;
+import net.minecraft.resources.ResourceKey;
+import net.minecraft.server.MinecraftServer;
+import net.minecraft.server.level.ServerLevel;
+import net.minecraft.world.level.Level;
+import net.minecraft.world.level.block.entity.LecternBlockEntity;
+import net.minecraft.world.level.saveddata.maps.MapId;
+import net.minecraft.world.level.storage.LevelResource;
+
+/**
+ * Walls whose maps follow the book in a lectern. Lecterns are checked every live-check-ticks; when their book changed,
+ * the wall is rendered again and only the parts of the maps that changed are written.
+ * Boards are stored in the world folder. Everything here runs on the server thread.
+ */
+public class LiveBoards {
+    public static class Board {
+        private final ResourceKey<Level> dimension;
+        private final BlockPos lectern;
+        private final UUID owner;
+        private final String ownerName;
+        private final int width;
+        private final int height;
+        private final List<MapId> maps;
+        // the book the maps currently show
+        private String renderedKey;
+        // a book that can't be rendered, it is only tried again once it changes
+        private String failedKey = null;
+        private volatile boolean updating = false;
+
+        public Board(ResourceKey<Level> dimension, BlockPos lectern, UUID owner, String ownerName, int width, int height, List<MapId> maps, String renderedKey) {
+            this.dimension = dimension;
+            this.lectern = lectern;
+            this.owner = owner;
+            this.ownerName = ownerName;
+            this.width = width;
+            this.height = height;
+            this.maps = List.copyOf(maps);
+            this.renderedKey = renderedKey;
+        }
+
+        public BlockPos getLectern() {
+            return this.lectern;
+        }
+
+        public UUID getOwner() {
+            return this.owner;
+        }
+
+        public String getOwnerName() {
+            return this.ownerName;
+        }
+
+        public int getWidth() {
+            return this.width;
+        }
+
+        public int getHeight() {
+            return this.height;
+        }
+
+        public List<MapId> getMaps() {
+            return this.maps;
+        }
+
+        void setUpdating(boolean updating) {
+            this.updating = updating;
+        }
+
+        void setFailed(String key) {
+            this.failedKey = key;
+        }
+    }
+
+    private static final ArrayList<Board> BOARDS = new ArrayList<>();
+    private static Path file = null;
+    private static int ticks = 0;
+
+    /**
+     * Identifies the text of a book, to notice when it changed.
+     */
+    public static String key(List<String> pages) {
+        return RenderCache.key(pages);
+    }
+
+    public static Board get(ServerLevel world, BlockPos lectern) {
+        LiveBoards.load(world.getServer());
+        for (Board board : LiveBoards.BOARDS) {
+            if (board.dimension.equals(world.dimension()) && board.lectern.equals(lectern)) return board;
+        }
+        return null;
+    }
+
+    public static List<Board> getAll(MinecraftServer server) {
+        LiveBoards.load(server);
+        return List.copyOf(LiveBoards.BOARDS);
+    }
+
+    public static void add(ServerLevel world, Board board) {
+        LiveBoards.load(world.getServer());
+        LiveBoards.BOARDS.add(board);
+        LiveBoards.save();
+    }
+
+    public static void remove(ServerLevel world, Board board) {
+        LiveBoards.load(world.getServer());
+        if (LiveBoards.BOARDS.remove(board)) LiveBoards.save();
+    }
+
+    /**
+     * Called at the end of every server tick.
+     */
+    public static void tick(MinecraftServer server) {
+        if (++LiveBoards.ticks < Config.liveCheckTicks) return;
+        LiveBoards.ticks = 0;
+        LiveBoards.load(server);
+
+        var iterator = LiveBoards.BOARDS.iterator();
+        boolean changed = false;
+        while (iterator.hasNext()) {
+            var board = iterator.next();
+            if (board.updating) continue;
+            var world = server.getLevel(board.dimension);
+            // unloaded boards are caught up once someone comes close again
+            if (world == null || !world.isLoaded(board.lectern)) continue;
+            if (!(world.getBlockEntity(board.lectern) instanceof LecternBlockEntity lectern)) {
+                Book2Map.LOGGER.info("Lectern of live board at {} is gone, unlinking it", board.lectern.toShortString());
+                iterator.remove();
+                changed = true;
+                continue;
+            }
+            if (!lectern.hasBook()) continue;
+            var pages = Map.readPages(lectern.getBook());
+            if (pages == null) continue;
+            var key = LiveBoards.key(pages);
+            if (key.equals(board.renderedKey) || key.equals(board.failedKey)) continue;
+            // the board only counts as up to date once its maps were written, anything else is tried again with the next check
+            board.setUpdating(true);
+            Map.updateLive(board, world, pages, key);
+        }
+        if (changed) LiveBoards.save();
+    }
+
+    /**
+     * Called once the maps of the board show the book with the given key.
+     */
+    static void rendered(Board board, String key) {
+        board.renderedKey = key;
+        board.failedKey = null;
+        if (LiveBoards.BOARDS.contains(board)) LiveBoards.save();
+    }
+
+    /**
+     * Called when the server stops.
+     */
+    public static void unload() {
+        LiveBoards.BOARDS.clear();
+        LiveBoards.file = null;
+        LiveBoards.ticks = 0;
+    }
+
+    private static void load(MinecraftServer server) {
+        if (LiveBoards.file != null) return;
+        LiveBoards.file = server.getWorldPath(LevelResource.ROOT).resolve(Book2Map.MOD_ID).resolve("live_boards.txt");
+        if (!Files.exists(LiveBoards.file)) return;
+        try {
+            for (String line : Files.readAllLines(LiveBoards.file)) {
+                var parts = line.split(" ");
+                if (parts.length != 10) continue;
+                var maps = new ArrayList<MapId>();
+                for (String id : parts[9].split(",")) {
+                    maps.add(new MapId(Integer.parseInt(id)));
+                }
+                LiveBoards.BOARDS.add(new Board(
+                        ResourceKey.create(Registries.DIMENSION, Identifier.parse(parts[0])),
+                        new BlockPos(Integer.parseInt(parts[1]), Integer.parseInt(parts[2]), Integer.parseInt(parts[3])),
+                        UUID.fromString(parts[4]), parts[5],
+                        Integer.parseInt(parts[6]), Integer.parseInt(parts[7]),
+                        maps, parts[8]
+                ));
+            }
+        } catch (Exception e) {
+            Book2Map.LOGGER.error("Error while loading live boards: {}", e.toString());
+        }
+    }
+
+    private static void save() {
+        var target = LiveBoards.file;
+        var lines = new ArrayList<String>();
+        for (Board board : LiveBoards.BOARDS) {
+            var ids = new StringJoiner(",");
+            board.maps.forEach(id -> ids.add(String.valueOf(id.id())));
+            lines.add(board.dimension.identifier() + " " + board.lectern.getX() + " " + board.lectern.getY() + " " + board.lectern.getZ() + " "
+                    + board.owner + " " + board.ownerName + " " + board.width + " " + board.height + " " + board.renderedKey + " " + ids);
+        }
+        RenderCache.IO.execute(() -> {
+            try {
+                Files.createDirectories(target.getParent());
+                Files.write(target, lines);
+            } catch (Exception e) {
+                Book2Map.LOGGER.error("Error while saving live boards: {}", e.toString());
+            }
+        });
+    }
+}
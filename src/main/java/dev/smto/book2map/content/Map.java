@@ -5,23 +5,30 @@ Parts of this file (mainly the rendering part) were taken from image2map (https:
 package dev.smto.book2map.content;
 
 import dev.smto.book2map.Book2Map;
+import dev.smto.book2map.Config;
 import dev.smto.book2map.api.CanvasDimensions;
-import dev.smto.book2map.api.CompositeEffect;
 import dev.smto.book2map.api.ConfiguredEffect;
-import eu.pb4.mapcanvas.api.core.CanvasImage;
+import dev.smto.book2map.api.PaletteCanvas;
+import dev.smto.book2map.api.PalettePreparedEffect;
+import dev.smto.book2map.api.PreparedEffect;
 
 import java.awt.*;
 import java.awt.image.BufferedImage;
+import java.nio.ByteBuffer;
 import java.util.*;
 import java.util.List;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Consumer;
+import java.util.stream.IntStream;
 import net.minecraft.ChatFormatting;
+import net.minecraft.core.BlockPos;
 import net.minecraft.core.component.DataComponents;
 import net.minecraft.core.registries.Registries;
-import net.minecraft.nbt.CompoundTag;
 import net.minecraft.network.chat.Component;
 import net.minecraft.network.chat.TextColor;
+import net.minecraft.server.network.Filterable;
 import net.minecraft.resources.Identifier;
 import net.minecraft.resources.ResourceKey;
 import net.minecraft.server.level.ServerLevel;
@@ -33,66 +40,142 @@ import net.minecraft.world.item.ItemStack;
 import net.minecraft.world.item.ItemStackTemplate;
 import net.minecraft.world.item.Items;
 import net.minecraft.world.item.component.BundleContents;
-import net.minecraft.world.item.component.CustomData;
 import net.minecraft.world.item.component.ItemLore;
+import net.minecraft.world.item.component.WritableBookContent;
+import net.minecraft.world.item.component.WrittenBookContent;
+import net.minecraft.world.level.block.entity.LecternBlockEntity;
+import net.minecraft.world.level.saveddata.maps.MapId;
 import net.minecraft.world.level.saveddata.maps.MapItemSavedData;
+import net.minecraft.world.phys.BlockHitResult;
+import net.minecraft.world.phys.HitResult;
 
 @SuppressWarnings({"MagicConstant", "DataFlowIssue"})
 public class Map {
-    public static CanvasImage render(BufferedImage image, Boolean dither, int width, int height) {
-        Image resizedImage = image.getScaledInstance(width, height, Image.SCALE_DEFAULT);
-        BufferedImage resized = Map.convertToBufferedImage(resizedImage);
+    public static PaletteCanvas render(BufferedImage image, Boolean dither, int width, int height) {
+        BufferedImage resized = Resampler.resize(image, width, height);
         if (dither) {
-            return CanvasImage.fromWithFloydSteinbergDither(resized);
-        } else return CanvasImage.from(resized);
+            return Quantizer.dither(resized);
+        } else return Quantizer.quantize(resized);
     }
 
-    public static List<ItemStack> toVanillaItems(CanvasImage image, ServerLevel world) {
-        var xSections = Mth.ceil(image.getWidth() / 128.0d);
-        var ySections = Mth.ceil(image.getHeight() / 128.0d);
+    /**
+     * Map-sized pieces of an image, in rows from top to bottom. The image is centered if it doesn't fill the last row or column.
+     * sameAs points to the first tile with identical content (or the tile itself).
+     */
+    public record Tiles(int columns, int rows, byte[][] colors, int[] hashes, int[] sameAs) {}
+
+    /**
+     * Cuts the image into tiles, copying whole clipped rows at once. Does not touch the world, so it can run on any thread.
+     */
+    public static Tiles slice(PaletteCanvas image) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        var xSections = Mth.ceil(width / 128.0d);
+        var ySections = Mth.ceil(height / 128.0d);
+
+        var xDelta = (xSections * 128 - width) / 2;
+        var yDelta = (ySections * 128 - height) / 2;
+
+        byte[] data = image.getData();
+        byte[][] colors = new byte[xSections * ySections][];
+        int[] hashes = new int[colors.length];
+        IntStream.range(0, colors.length).parallel().forEach(i -> {
+            int originX = (i % xSections) * 128 - xDelta;
+            int originY = (i / xSections) * 128 - yDelta;
+            int x0 = Math.max(0, originX), x1 = Math.min(width, originX + 128);
+            int y0 = Math.max(0, originY), y1 = Math.min(height, originY + 128);
+            var tile = new byte[128 * 128];
+            if (x1 > x0) {
+                for (int y = y0; y < y1; y++) {
+                    System.arraycopy(data, y * width + x0, tile, (y - originY) * 128 + (x0 - originX), x1 - x0);
+                }
+            }
+            colors[i] = tile;
+            hashes[i] = Arrays.hashCode(tile);
+        });
+
+        return Map.findDuplicates(xSections, ySections, colors, hashes);
+    }
 
-        var xDelta = (xSections * 128 - image.getWidth()) / 2;
-        var yDelta = (ySections * 128 - image.getHeight()) / 2;
+    private static Tiles findDuplicates(int columns, int rows, byte[][] colors, int[] hashes) {
+        // identical tiles (solid backgrounds, empty margins) share one map
+        int[] sameAs = new int[colors.length];
+        var first = new HashMap<ByteBuffer, Integer>();
+        for (int i = 0; i < colors.length; i++) {
+            var previous = first.putIfAbsent(ByteBuffer.wrap(colors[i]), i);
+            sameAs[i] = previous == null ? i : previous;
+        }
+        return new Tiles(columns, rows, colors, hashes, sameAs);
+    }
 
+    public static List<ItemStack> toVanillaItems(PaletteCanvas image, ServerLevel world) {
+        return Map.toVanillaItems(Map.slice(image), world);
+    }
+
+    /**
+     * Registers a map for every distinct tile and creates the items. Has to run on the server thread.
+     */
+    public static List<ItemStack> toVanillaItems(Tiles tiles, ServerLevel world) {
         var items = new ArrayList<ItemStack>();
+        var ids = new MapId[tiles.colors().length];
+        for (int i = 0; i < ids.length; i++) {
+            items.add(Map.commitTile(tiles, i, ids, world, false));
+        }
+        MapPool.flush();
+        return items;
+    }
 
+    /**
+     * Registers the map for tile i (unless an identical one exists already) and creates its item.
+     * ids holds the maps of all tiles before i. Exclusive tiles always get a new map that no other tile or render shares,
+     * because it will be changed later.
+     */
+    static ItemStack commitTile(Tiles tiles, int i, MapId[] ids, ServerLevel world, boolean exclusive) {
+        var colors = tiles.colors()[i];
+        var id = exclusive ? null : ids[tiles.sameAs()[i]];
+        if (id == null && !exclusive && Config.dedupeAcrossRenders) {
+            id = TileIndex.find(world, colors, tiles.hashes()[i]);
+        }
+        if (id == null) {
+            // reuse ids of maps nobody holds anymore before allocating new ones
+            id = MapPool.take(world);
+            if (id == null) id = world.getFreeMapId();
+            var state = MapItemSavedData.createFresh(
+                    0, 0, (byte) 0,
+                    false, false,
+                    ResourceKey.create(Registries.DIMENSION, Identifier.fromNamespaceAndPath("image2map", "generated"))
+            );
+            System.arraycopy(colors, 0, state.colors, 0, colors.length);
+            world.setMapData(id, state);
+            if (!exclusive) TileIndex.add(tiles.hashes()[i], id);
+        }
+        ids[i] = id;
+        return Map.createMapItem(id, i % tiles.columns(), i / tiles.columns(), tiles.columns(), tiles.rows());
+    }
+
+    /**
+     * Creates new items for maps that already exist, in the same order as {@link Map#toVanillaItems}.
+     */
+    public static List<ItemStack> toVanillaItems(List<MapId> maps, int width, int height) {
+        var xSections = Mth.ceil(width / 128.0d);
+        var ySections = Mth.ceil(height / 128.0d);
+        var items = new ArrayList<ItemStack>();
         for (int ys = 0; ys < ySections; ys++) {
             for (int xs = 0; xs < xSections; xs++) {
-                var id = world.getFreeMapId();
-                var state = MapItemSavedData.createFresh(
-                        0, 0, (byte) 0,
-                        false, false,
-                        ResourceKey.create(Registries.DIMENSION, Identifier.fromNamespaceAndPath("image2map", "generated"))
-                );
-
-                for (int xl = 0; xl < 128; xl++) {
-                    for (int yl = 0; yl < 128; yl++) {
-                        var x = xl + xs * 128 - xDelta;
-                        var y = yl + ys * 128 - yDelta;
-
-                        if (x >= 0 && y >= 0 && x < image.getWidth() && y < image.getHeight()) {
-                            state.colors[xl + yl * 128] = image.getRaw(x, y);
-                        }
-                    }
-                }
-                world.setMapData(id, state);
-
-                var stack = new ItemStack(Items.FILLED_MAP);
-                stack.set(DataComponents.MAP_ID, id);
-                //stack.getOrCreateNbt().putInt("map", id);
-                CompoundTag n = new CompoundTag();
-                n.putInt("image2map:x", xs);
-                n.putInt("image2map:y", ys);
-                n.putInt("image2map:width", xSections);
-                n.putInt("image2map:height", ySections);
-                stack.set(DataComponents.CUSTOM_DATA, CustomData.of(n));
-                items.add(stack);
+                items.add(Map.createMapItem(maps.get(xs + ys * xSections), xs, ys, xSections, ySections));
             }
         }
-
         return items;
     }
 
+    private static ItemStack createMapItem(MapId id, int xs, int ys, int xSections, int ySections) {
+        var stack = new ItemStack(Items.FILLED_MAP);
+        stack.set(DataComponents.MAP_ID, id);
+        //stack.getOrCreateNbt().putInt("map", id);
+        new WallTile(xs, ys, xSections, ySections).writeTo(stack);
+        return stack;
+    }
+
     public static BufferedImage convertToBufferedImage(Image image) {
         BufferedImage newImage = new BufferedImage(image.getWidth(null), image.getHeight(null),
                 BufferedImage.TYPE_4BYTE_ABGR);
@@ -102,333 +185,664 @@ public class Map {
         return newImage;
     }
 
-    private static BufferedImage compositeImage(ServerPlayer player, CanvasDimensions d, List<ConfiguredEffect> effects) {
+    private static BufferedImage compositeImage(RenderJob job, Consumer<String> messages, CanvasDimensions d, List<PreparedEffect> operations) {
         BufferedImage newImage = new BufferedImage(d.width(), d.height(),
                 BufferedImage.TYPE_4BYTE_ABGR);
         Graphics2D g = newImage.createGraphics();
 
-        // init
+        // init, unless the first effect paints over all of it anyway
         g.setBackground(Color.BLACK);
         g.setColor(Color.BLACK);
-        g.fillRect(0,0, d.width(), d.height());
+        if (!operations.getFirst().coversCanvas()) g.fillRect(0,0, d.width(), d.height());
 
         // user effects
         String r;
-        for (ConfiguredEffect effect : effects) {
-            r = effect.effect().apply(g, d, effect.data());
+        for (PreparedEffect operation : operations) {
+            job.checkCancelled();
+            r = operation.apply(newImage, g);
             if (!r.isEmpty()) {
-                player.sendSystemMessage(Component.literal(ChatFormatting.RED + r), false);
+                messages.accept(ChatFormatting.RED + r);
             }
         }
         g.dispose();
         return newImage;
     }
 
-    public static void createByCommand(ServerPlayer player) {
+    private static boolean isPaletteOnly(List<PreparedEffect> operations) {
+        for (PreparedEffect operation : operations) {
+            if (!KernelPass.supportsPalette(operation)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static PaletteCanvas compositePalette(RenderJob job, Consumer<String> messages, CanvasDimensions d, List<PreparedEffect> operations) {
+        var canvas = new PaletteCanvas(d.width(), d.height());
+
+        // init, unless the first effect paints over all of it anyway
+        if (!operations.getFirst().coversCanvas()) canvas.fill(PaletteCanvas.snap(Color.BLACK));
+
+        // user effects
+        String r;
+        for (PreparedEffect operation : operations) {
+            job.checkCancelled();
+            r = ((PalettePreparedEffect) operation).apply(canvas);
+            if (!r.isEmpty()) {
+                messages.accept(ChatFormatting.RED + r);
+            }
+        }
+        return canvas;
+    }
+
+    /**
+     * Returns the pages of the book the player is holding, or null (after telling them why) if there is none.
+     */
+    private static List<String> readPages(ServerPlayer player) {
         var offhandStack = player.getItemInHand(InteractionHand.MAIN_HAND);
-        if (offhandStack.isEmpty()) {
+        if (!offhandStack.is(Items.WRITABLE_BOOK) && !offhandStack.is(Items.WRITTEN_BOOK)) {
             player.sendSystemMessage(Component.nullToEmpty("§6You need to hold a book to use this command!"), false);
+            return null;
+        }
+        var pages = Map.readPages(offhandStack);
+        if (pages == null) {
+            player.sendSystemMessage(Component.literal("§6Book is empty!"), false);
+        }
+        return pages;
+    }
+
+    /**
+     * Returns the pages of a book and quill or a written book, or null if the item is neither or has no pages.
+     */
+    static List<String> readPages(ItemStack stack) {
+        List<String> raw;
+        if (stack.is(Items.WRITABLE_BOOK)) {
+            raw = stack.getOrDefault(DataComponents.WRITABLE_BOOK_CONTENT, WritableBookContent.EMPTY).pages().stream().map(Filterable::raw).toList();
+        } else if (stack.is(Items.WRITTEN_BOOK)) {
+            raw = stack.getOrDefault(DataComponents.WRITTEN_BOOK_CONTENT, WrittenBookContent.EMPTY).pages().stream().map(page -> page.raw().getString()).toList();
+        } else return null;
+        if (raw.isEmpty()) return null;
+
+        List<String> pages = new ArrayList<>();
+        raw.forEach(page -> pages.add(Map.convertTextCompound(page).replace("@@","§")));
+        return pages;
+    }
+
+    public static void createByCommand(ServerPlayer player) {
+        var pages = Map.readPages(player);
+        if (pages == null) return;
+        if (RenderJob.getJobs(player.getUUID()).size() >= Config.maxJobsPerPlayer) {
+            player.sendSystemMessage(Component.literal("§cYou already have " + Config.maxJobsPerPlayer + " maps generating, wait for them to finish!"), false);
             return;
         }
-        if(offhandStack.getItem().equals(Items.WRITABLE_BOOK) || offhandStack.getItem().equals(Items.WRITTEN_BOOK)) {
-            var x = offhandStack.getComponents().get(DataComponents.WRITABLE_BOOK_CONTENT).pages();
-            if(x.isEmpty()) {
-                player.sendSystemMessage(Component.literal("§6Book is empty!"), false);
-                return;
-            }
 
-            List<String> pages = new ArrayList<>();
-            x.forEach((pair -> {
-                pages.add(Map.convertTextCompound(pair.raw()).replace("@@","§"));
-            }));
+        var job = RenderJob.create(player);
+        try {
+            RenderExecutor.submit(() -> {
+                job.advance(RenderJob.State.PREPARING);
+                return Map.prepare(text -> Map.message(player, text), pages);
+            }).thenAcceptAsync(prepared -> Map.start(job, player, prepared), player.level().getServer()).exceptionally(e -> Map.fail(job, player, e));
+        } catch (RejectedExecutionException e) {
+            job.finish(e);
+            player.sendSystemMessage(Component.literal("§cToo many maps are being generated right now, try again later!"), false);
+            return;
+        }
+        player.sendSystemMessage(Component.literal("§6Started job #" + job.getId() + ", use /b2m cancel " + job.getId() + " to stop it."), false);
+    }
+
+    /**
+     * Tells the player what generating the held book would cost, without rendering anything.
+     */
+    public static void estimateByCommand(ServerPlayer player) {
+        var pages = Map.readPages(player);
+        if (pages == null) return;
+        try {
+            RenderExecutor.submit(() -> Map.prepare(text -> Map.message(player, text), pages)).thenAcceptAsync(prepared -> {
+                var cost = Map.estimate(prepared);
+                player.sendSystemMessage(Component.literal("§6Size in blocks: §r" + (cost.width() / 128) + "x" + (cost.height() / 128)), false);
+                player.sendSystemMessage(Component.literal("§6Pixels: §r" + cost.pixels()), false);
+                player.sendSystemMessage(Component.literal("§6Maps: §rup to " + cost.tiles()), false);
+                player.sendSystemMessage(Component.literal("§6Peak memory: §r~" + cost.peakMegabytes() + " MB"), false);
+                player.sendSystemMessage(Component.literal("§6Time: §r~" + cost.estimatedMillis() + " ms"), false);
+                var limit = cost.checkLimits();
+                if (limit.isEmpty()) {
+                    player.sendSystemMessage(Component.literal("§6This book can be generated."), false);
+                } else player.sendSystemMessage(Component.literal("§c" + limit), false);
+            }, player.level().getServer()).exceptionally(e -> {
+                Book2Map.LOGGER.warn("Map estimation failed: {}", (e instanceof CompletionException && e.getCause() != null ? e.getCause() : e).toString());
+                Map.message(player, "§cFailed to read settings! Check your settings!");
+                return null;
+            });
+        } catch (RejectedExecutionException e) {
+            player.sendSystemMessage(Component.literal("§cToo many maps are being generated right now, try again later!"), false);
+        }
+    }
+
+    /**
+     * Shows the held book to the player at reduced size, on maps that only exist on their client.
+     */
+    public static void previewByCommand(ServerPlayer player) {
+        var pages = Map.readPages(player);
+        if (pages == null) return;
+        if (RenderJob.getJobs(player.getUUID()).size() >= Config.maxJobsPerPlayer) {
+            player.sendSystemMessage(Component.literal("§cYou already have " + Config.maxJobsPerPlayer + " maps generating, wait for them to finish!"), false);
+            return;
+        }
 
-            ArrayList<ConfiguredEffect> effects = new ArrayList<>();
+        var job = RenderJob.create(player);
+        try {
+            RenderExecutor.submit(() -> {
+                job.advance(RenderJob.State.PREPARING);
+                return Map.prepare(text -> Map.message(player, text), pages);
+            }).thenAcceptAsync(prepared -> Map.startPreview(job, player, prepared), player.level().getServer()).exceptionally(e -> Map.fail(job, player, e));
+        } catch (RejectedExecutionException e) {
+            job.finish(e);
+            player.sendSystemMessage(Component.literal("§cToo many maps are being generated right now, try again later!"), false);
+        }
+    }
 
-            // READ DATA FROM BOOK HERE
-            // defaults
+    private static void startPreview(RenderJob job, ServerPlayer player, PreparedRender prepared) {
+        for (String line : prepared.summary()) {
+            player.sendSystemMessage(Component.literal(line), false);
+        }
 
-            String bundleLore;
-            if (!pages.isEmpty()) bundleLore = pages.getFirst().trim().substring(0, 32).replace('\n', ' ') + "...";
-            else {
-                bundleLore = "(Empty book)";
-            }
+        // same limits as the real render, a preview of a book that can't be generated isn't much use
+        var limit = Map.admit(job, prepared);
+        if (!limit.isEmpty()) {
+            job.finish(new IllegalStateException(limit));
+            player.sendSystemMessage(Component.literal("§c" + limit), false);
+            return;
+        }
 
-            String font = Fonts.getAvailableFonts().getFirst().getFontName();
-            for (Font xfont : Fonts.getAvailableFonts()) {
-                if (xfont.getFontName().equals("Minecraft")) {
-                    font = xfont.getFontName();
-                    break;
-                }
+        job.advance(RenderJob.State.RENDERING);
+        try {
+            RenderExecutor.submit(() -> Map.drawPreview(job, text -> Map.message(player, text), prepared)).thenAcceptAsync(canvas -> {
+                job.finish(null);
+                if (player.isRemoved()) return;
+                Previews.show(player, canvas);
+                player.sendSystemMessage(Component.literal("§6Showing a preview, it disappears when you walk away."), false);
+            }, player.level().getServer()).exceptionally(e -> Map.fail(job, player, e));
+        } catch (RejectedExecutionException e) {
+            job.finish(e);
+            player.sendSystemMessage(Component.literal("§cToo many maps are being generated right now, try again later!"), false);
+        }
+    }
+
+    private static RenderCost estimate(PreparedRender prepared) {
+        return RenderCost.of(prepared.width(), prepared.height(), prepared.spec().dither(), Map.isPaletteOnly(prepared.operations()), Map.isBanded(prepared), prepared.operations().size());
+    }
+
+    // cacheKey is null for renders that must not be reused, see RenderSpec#key
+    private record PreparedRender(RenderSpec spec, List<PreparedEffect> operations, String bundleLore, String cacheKey, List<String> summary) {
+        int width() {
+            return this.spec.width();
+        }
+        int height() {
+            return this.spec.height();
+        }
+    }
+
+    /**
+     * Reads the settings from the book, compiles its effects and lays out its text. Runs on the render executor.
+     */
+    private static PreparedRender prepare(Consumer<String> messages, List<String> pages) {
+        String bundleLore;
+        if (!pages.isEmpty()) {
+            var first = pages.getFirst().trim();
+            bundleLore = first.substring(0, Math.min(32, first.length())).replace('\n', ' ') + "...";
+        }
+        else {
+            bundleLore = "(Empty book)";
+        }
+
+        var spec = RenderSpec.parse(pages, messages);
+        var d = new CanvasDimensions(spec.width(), spec.height());
+        BookLayout layout = BookLayout.create(spec.pages(), spec.font(), spec.fontSize(), spec.textColor(), spec.leftOffset(), spec.topOffset(), spec.antialiasing(), spec.height());
+
+        var bookContent = new PalettePreparedEffect() {
+            public String apply(Graphics2D g) {
+                return "";
             }
-            int width = 256;
-            int height = 256;
-            int lineSize = 20;
-            int leftOffset = 8;
-            int topOffset = 10;
-            boolean dither = false;
-            boolean aa = true;
-            Color color = Color.WHITE;
-            effects.add(new ConfiguredEffect(CompositeEffects.BACKGROUND_RANDOM, new ArrayList<>(List.of("brown"))));
-            effects.add(new ConfiguredEffect(CompositeEffects.FRAME, new ArrayList<>(List.of("black"))));
-            boolean presetSettings = true;
-
-            // check for custom settings
-            var t2 = String.join("\n", pages).split("book2map");
-            if (t2.length == 1) {
-                t2 = String.join("\n", pages).split("b2m");
+            public String apply(BufferedImage image, Graphics2D g) {
+                layout.draw(image);
+                return "";
             }
-            String settingsPage = "";
-            if (t2.length > 1) {
-                settingsPage = "book2map\n" + t2[1].trim();
-                pages.clear();
-                pages.add(t2[0].trim());
+            public String applyBand(BufferedImage image, int offsetY, Graphics2D g) {
+                layout.draw(image, offsetY);
+                return "";
             }
-            var settings = new ArrayList<>(List.of(settingsPage.split("\n")));
-            if (settings.getFirst().trim().equals("book2map")) {
-                player.sendSystemMessage(Component.literal("§6Using custom settings from book!"), false);
-                settings.removeFirst();
-                for (String s : settings) {
-                    var line = s.trim().split(":");
-                    if (line[0].startsWith("!") || line[0].startsWith("#")) {
-                        continue;
-                    }
-                    if (line.length == 2) {
-                        switch (line[0]) {
-                            case "font", "font-name", "fontname", "f" -> {
-                                font = line[1];
-                            }
-                            case "size", "font-size", "fontsize", "s" -> {
-                                try {
-                                    lineSize = Integer.parseInt(line[1]);
-                                } catch (Exception ignored) {}
-                            }
-                            case "top", "top-offset", "topoffset", "t" -> {
-                                try {
-                                    topOffset = Integer.parseInt(line[1]);
-                                } catch (Exception ignored) {}
-                            }
-                            case "dither", "d" -> {
-                                dither = line[1].trim().equals("true") || line[1].trim().equals("yes") || line[1].trim().equals("1");
-                            }
-                            case "aa", "a", "anti-aliasing", "antialiasing" -> {
-                                aa = !line[1].trim().equals("false") && !line[1].trim().equals("off") && !line[1].trim().equals("0");
-                            }
-                            case "width", "w" -> {
-                                try {
-                                    width = Integer.parseInt(line[1]) * 128;
-                                } catch (Exception ignored) {}
-                            }
-                            case "height", "h" -> {
-                                try {
-                                    height = Integer.parseInt(line[1]) * 128;
-                                } catch (Exception ignored) {}
-                            }
-                            case "left", "left-offset", "leftoffset", "l" -> {
-                                try {
-                                    leftOffset = Integer.parseInt(line[1]);
-                                } catch (Exception ignored) {}
-                            }
-                            case "color", "textcolor", "text-color", "font-color", "fontcolor", "c" -> {
-                                try {
-                                    color = Colors.fromString(line[1]);
-                                } catch (Exception ignored) {}
-                            }
-                            case "effect", "e" -> {
-                                if (presetSettings) {
-                                    effects.clear();
-                                    presetSettings = false;
-                                }
-                                try {
-                                    if (line[1].trim().contains(",")) {
-                                        String effect = line[1].trim().split(",")[0];
-                                        String arguments = line[1].trim().replace(effect, "");
-                                        arguments = arguments.substring(1);
-                                        effects.add(new ConfiguredEffect(
-                                                CompositeEffects.get(effect),
-                                                new ArrayList<>(List.of(arguments.split(",")))
-                                        ));
-                                    } else {
-                                        effects.add(ConfiguredEffect.unconfigured(CompositeEffects.get(line[1])));
-                                    }
-                                } catch (Exception ignored) {
-                                    player.sendSystemMessage(Component.literal("§cInvalid effect settings: " + line[1].trim()), false);
-                                }
-                            }
-                        }
-                    }
-                }
+            public boolean supportsPalette() {
+                // anti-aliased text blends with whatever is below it
+                return !layout.isAntialiased();
+            }
+            public String apply(PaletteCanvas canvas) {
+                layout.draw(canvas);
+                return "";
+            }
+        };
+        // invalid effects are reported here and skipped, before anything is drawn
+        var operations = new ArrayList<PreparedEffect>();
+        boolean placed = false;
+        for (ConfiguredEffect effect : spec.effects()) {
+            if (effect.effect().getIdentifier().equals("book-content")) {
+                operations.add(bookContent);
+                placed = true;
+                continue;
+            }
+            try {
+                operations.add(effect.effect().compile(d, effect.data()));
+            } catch (IllegalArgumentException e) {
+                messages.accept(ChatFormatting.RED + e.getMessage());
+            }
+        }
+        if (!placed) {
+            operations.add(bookContent);
+        }
+        // stacked backgrounds: everything below the last effect that paints over the whole canvas would never be seen
+        for (int i = operations.size() - 1; i > 0; i--) {
+            if (operations.get(i).coversCanvas()) {
+                operations.subList(0, i).clear();
+                break;
+            }
+        }
+        KernelPass.fuse(operations, d);
+
+        var summary = new ArrayList<String>();
+        summary.add("§6Font: §r" + spec.font());
+        summary.add("§6Font size: §r" + spec.fontSize());
+        summary.add("§6Font color: §rR" + spec.textColor().getRed() + " G" + spec.textColor().getGreen() + " B" + spec.textColor().getBlue());
+        summary.add("§6Width in blocks: §r" + (spec.width()/128));
+        summary.add("§6Height in blocks: §r" + (spec.height()/128));
+        summary.add("§6Left side offset: §r" + spec.leftOffset());
+        summary.add("§6Top side offset: §r" + spec.topOffset());
+        summary.add("§6Use dithering: §r" + spec.dither());
+        summary.add("§6Procedure (top to bottom): §r");
+        for (ConfiguredEffect effect : spec.effects()) {
+            summary.add(" -> " + effect.effect().getIdentifier() + ", " + String.join(",", effect.data()));
+        }
+        return new PreparedRender(spec, operations, bundleLore, spec.key(), summary);
+    }
+
+    /**
+     * Hands out the maps of an identical earlier render, or starts rendering. Runs on the server thread.
+     */
+    private static void start(RenderJob job, ServerPlayer player, PreparedRender prepared) {
+        for (String line : prepared.summary()) {
+            player.sendSystemMessage(Component.literal(line), false);
+        }
+
+        // same book with the same settings, hand out the maps from last time
+        var cached = prepared.cacheKey() == null ? null : RenderCache.get(player.level(), prepared.cacheKey());
+        if (cached != null) {
+            Map.giveToPlayer(player, Map.toVanillaItems(cached.maps(), cached.width(), cached.height()), prepared.bundleLore(), cached.width(), cached.height());
+            player.sendSystemMessage(Component.literal("§6Reused maps from an identical earlier render!"), false);
+            job.finish(null);
+            return;
+        }
+
+        var limit = Map.admit(job, prepared);
+        if (!limit.isEmpty()) {
+            job.finish(new IllegalStateException(limit));
+            player.sendSystemMessage(Component.literal("§c" + limit), false);
+            return;
+        }
+
+        player.sendSystemMessage(Component.literal("§6Generating..."), false);
+        CompletableFuture<Tiles> result;
+        try {
+            result = Map.submitRender(job, text -> Map.message(player, text), prepared);
+        } catch (RejectedExecutionException e) {
+            job.finish(e);
+            player.sendSystemMessage(Component.literal("§cToo many maps are being generated right now, try again later!"), false);
+            return;
+        }
+        result.thenComposeAsync(tiles -> {
+            job.advance(RenderJob.State.COMMITTING);
+            return CommitQueue.submit(job, tiles, player.level(), false);
+        }, player.level().getServer()).thenAccept(items -> {
+            // completed by the commit queue, so this is on the server thread
+            if (prepared.cacheKey() != null) RenderCache.put(player.level(), prepared.cacheKey(), new RenderCache.Entry(prepared.width(), prepared.height(), items.stream().map(i -> i.get(DataComponents.MAP_ID)).toList()));
+            Map.giveToPlayer(player, items, prepared.bundleLore(), prepared.width(), prepared.height());
+            player.sendSystemMessage(Component.literal("§6Done!"), false);
+            job.finish(null);
+        }).exceptionally(e -> Map.fail(job, player, e));
+    }
+
+    /**
+     * Returns why the prepared render can't run right now, or an empty string (after reserving its cost for the job) if it can.
+     */
+    private static String admit(RenderJob job, PreparedRender prepared) {
+        var cost = Map.estimate(prepared);
+        var limit = cost.checkLimits();
+        if (!limit.isEmpty()) return limit;
+        if (RenderJob.getAdmittedMegabytes() + cost.peakMegabytes() > Config.maxRenderMemoryMb) {
+            return "Too many maps are being generated right now, try again later!";
+        }
+        job.setCost(cost);
+        return "";
+    }
+
+    private static CompletableFuture<Tiles> submitRender(RenderJob job, Consumer<String> messages, PreparedRender prepared) {
+        job.advance(RenderJob.State.RENDERING);
+        return RenderExecutor.submit(() -> Map.renderTiles(job, messages, prepared));
+    }
+
+    private static Tiles renderTiles(RenderJob job, Consumer<String> messages, PreparedRender prepared) {
+        if (Map.isBanded(prepared)) return Map.drawBanded(job, messages, prepared);
+        var image = Map.draw(job, messages, prepared);
+        job.checkCancelled();
+        return Map.slice(image);
+    }
+
+    /**
+     * Renders the book in the lectern the player is looking at into a wall of maps that follows the book when it changes.
+     */
+    public static void linkByCommand(ServerPlayer player) {
+        var lectern = Map.findLectern(player);
+        if (lectern == null) return;
+        var pos = lectern.getBlockPos();
+        if (LiveBoards.get(player.level(), pos) != null) {
+            player.sendSystemMessage(Component.literal("§cThis lectern is already linked to a wall, use /b2m unlink first!"), false);
+            return;
+        }
+        var pages = Map.readPages(lectern.getBook());
+        if (pages == null) {
+            player.sendSystemMessage(Component.literal("§6The lectern needs a book with some text in it!"), false);
+            return;
+        }
+        if (RenderJob.getJobs(player.getUUID()).size() >= Config.maxJobsPerPlayer) {
+            player.sendSystemMessage(Component.literal("§cYou already have " + Config.maxJobsPerPlayer + " maps generating, wait for them to finish!"), false);
+            return;
+        }
+
+        var job = RenderJob.create(player);
+        var pagesKey = LiveBoards.key(pages);
+        try {
+            RenderExecutor.submit(() -> {
+                job.advance(RenderJob.State.PREPARING);
+                return Map.prepare(text -> Map.message(player, text), pages);
+            }).thenAcceptAsync(prepared -> Map.startLive(job, player, prepared, pos, pagesKey), player.level().getServer()).exceptionally(e -> Map.fail(job, player, e));
+        } catch (RejectedExecutionException e) {
+            job.finish(e);
+            player.sendSystemMessage(Component.literal("§cToo many maps are being generated right now, try again later!"), false);
+            return;
+        }
+        player.sendSystemMessage(Component.literal("§6Started job #" + job.getId() + ", use /b2m cancel " + job.getId() + " to stop it."), false);
+    }
+
+    /**
+     * Like {@link Map#start}, but never reuses maps, since they will be changed later. Runs on the server thread.
+     */
+    private static void startLive(RenderJob job, ServerPlayer player, PreparedRender prepared, BlockPos lectern, String pagesKey) {
+        for (String line : prepared.summary()) {
+            player.sendSystemMessage(Component.literal(line), false);
+        }
+        var limit = Map.admit(job, prepared);
+        if (!limit.isEmpty()) {
+            job.finish(new IllegalStateException(limit));
+            player.sendSystemMessage(Component.literal("§c" + limit), false);
+            return;
+        }
+
+        player.sendSystemMessage(Component.literal("§6Generating..."), false);
+        CompletableFuture<Tiles> result;
+        try {
+            result = Map.submitRender(job, text -> Map.message(player, text), prepared);
+        } catch (RejectedExecutionException e) {
+            job.finish(e);
+            player.sendSystemMessage(Component.literal("§cToo many maps are being generated right now, try again later!"), false);
+            return;
+        }
+        var world = player.level();
+        result.thenComposeAsync(tiles -> {
+            job.advance(RenderJob.State.COMMITTING);
+            return CommitQueue.submit(job, tiles, world, true);
+        }, world.getServer()).thenAccept(items -> {
+            var maps = items.stream().map(i -> i.get(DataComponents.MAP_ID)).toList();
+            if (LiveBoards.get(world, lectern) == null) {
+                LiveBoards.add(world, new LiveBoards.Board(world.dimension(), lectern, player.getUUID(), player.getName().getString(), prepared.width(), prepared.height(), maps, pagesKey));
             }
+            Map.giveToPlayer(player, items, prepared.bundleLore(), prepared.width(), prepared.height());
+            player.sendSystemMessage(Component.literal("§6Done! These maps now follow the book in the lectern, use /b2m unlink to stop."), false);
+            job.finish(null);
+        }).exceptionally(e -> Map.fail(job, player, e));
+    }
 
+    /**
+     * Stops the wall linked to the lectern the player is looking at from following its book. The maps stay as they are.
+     */
+    public static void unlinkByCommand(ServerPlayer player, boolean isAdmin) {
+        var lectern = Map.findLectern(player);
+        if (lectern == null) return;
+        var board = LiveBoards.get(player.level(), lectern.getBlockPos());
+        if (board == null || (!isAdmin && !board.getOwner().equals(player.getUUID()))) {
+            player.sendSystemMessage(Component.literal("§6This lectern is not linked to any of your walls."), false);
+            return;
+        }
+        LiveBoards.remove(player.level(), board);
+        player.sendSystemMessage(Component.literal("§6Unlinked! The maps will keep their current content."), false);
+    }
 
-            int finalLineSize = lineSize;
-            int finalLeftOffset = leftOffset;
-            int finalTopOffset = topOffset;
-            Font finalFont = new Font(font, Font.PLAIN, finalLineSize);
-            Color finalColor = color;
-            int finalWidth = width;
-            int finalHeight = height;
-            boolean finalDither = dither;
-            boolean finalAa = aa;
-
-            var bookEffect = new CompositeEffect() {
-                public String getIdentifier() {return "book-content";}
-
-                public String getDescription() {return "book-content";}
-                private int currentLine = 0;
-                public String apply(Graphics2D g, CanvasDimensions d, List<String> unused) {
-                    g.setColor(Color.WHITE);
-                    boolean nextIsTag = false;
-                    Color currentColor;
-                    int fontSizeModifier = 0;
-                    int currentFontType = Font.PLAIN;
-                    Font currentFont = finalFont.deriveFont(Font.PLAIN, finalLineSize);
-                    int maxCharacterHeight = g.getFontMetrics(finalFont.deriveFont(Font.BOLD, finalLineSize)).getHeight();
-                    int currentXPosition = 0;
-                    int currentYPosition = finalTopOffset;
-                    master: for (String page : pages) {
-                        for (String line : page.split("\n")) {
-                            currentColor = finalColor;
-                            this.currentLine++;
-                            currentXPosition = finalLeftOffset;
-                            if (this.currentLine * finalLineSize > d.height()) {
-                                break master;
-                            }
-                            if (line.startsWith("^^")) {
-                                line = line.substring(2);
-                                var values = line.substring(0, 2).toCharArray();
-                                int val1 = -1;
-                                int val2 = -1;
-                                try {
-                                    val1 = Integer.parseInt(String.valueOf(values[0]));
-                                } catch (Exception ignored) {}
-                                try {
-                                    val2 = Integer.parseInt(String.valueOf(values[1]));
-                                } catch (Exception ignored) {}
-                                if (val1 != -1 && val2 != -1) {
-                                    fontSizeModifier = Integer.parseInt(String.valueOf(val1) + String.valueOf(val2));
-                                    line = line.substring(2);
-                                }
-                                else if (val1 != -1){
-                                    line = line.substring(1);
-                                    fontSizeModifier = val1;
-                                }
-                            } else fontSizeModifier = 0;
-
-                            currentFont = finalFont.deriveFont(currentFontType, finalLineSize + fontSizeModifier);
-                            maxCharacterHeight = g.getFontMetrics(currentFont.deriveFont(Font.BOLD)).getHeight();
-                            currentYPosition = currentYPosition + maxCharacterHeight;
-                            for (char c : line.toCharArray()) {
-                                //Book2Map.Logger.warn("currentColor: " + currentColor);
-                                //Book2Map.Logger.warn("currentFontType: " + currentFontType);
-                                //Book2Map.Logger.warn("Current char: " + c);
-
-                                if (!nextIsTag) {
-                                    if (c == '§') {
-                                        nextIsTag = true;
-                                    }
-                                    else {
-                                        currentFont = finalFont.deriveFont(currentFontType, finalLineSize + fontSizeModifier);
-                                        g.setColor(currentColor);
-                                        g.setFont(currentFont);
-                                        if (finalAa) {
-                                            g.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
-                                        } else g.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_OFF);
-                                        g.drawString(String.valueOf(c), currentXPosition, currentYPosition);
-                                        currentXPosition = currentXPosition + g.getFontMetrics(currentFont).charWidth(c);
-                                    }
-                                } else {
-                                    var temp = ChatFormatting.getByCode(c);
-                                    if (temp != null) {
-                                        //Book2Map.Logger.warn("TAG IS NOT COLOR: " + temp.getName());
-                                        switch (temp.toString()) {
-                                            case "§l" -> {
-                                                if (currentFontType == 0) {
-                                                    currentFontType = 1;
-                                                }
-                                                if (currentFontType == 2) {
-                                                    currentFontType = 3;
-                                                }
-                                            }
-                                            case "§o" -> {
-                                                if (currentFontType == 0) {
-                                                    currentFontType = 2;
-                                                }
-                                                if (currentFontType == 1) {
-                                                    currentFontType = 3;
-                                                }
-                                            }
-                                            case "§r" -> {
-                                                currentColor = finalColor;
-                                                currentFontType = 0;
-                                            }
-                                            case "§n","§m","§k" -> {
-                                                // ignore
-                                            }
-                                            default -> {
-                                                // only colors should remain at this point
-                                                var tempC = TextColor.fromLegacyFormat(temp);
-                                                if (tempC != null) currentColor = new Color((tempC.getValue() / 256 / 256) % 256, (tempC.getValue() / 256) % 256, tempC.getValue() % 256);
-                                            }
-                                        }
-                                    }
-                                    nextIsTag = false;
-                                }
-                            }
-                        }
-                        //currentLine++;
-                    }
-                    return "";
+    private static LecternBlockEntity findLectern(ServerPlayer player) {
+        if (player.pick(player.blockInteractionRange(), 0, false) instanceof BlockHitResult hit
+                && hit.getType() == HitResult.Type.BLOCK
+                && player.level().getBlockEntity(hit.getBlockPos()) instanceof LecternBlockEntity lectern) {
+            return lectern;
+        }
+        player.sendSystemMessage(Component.literal("§6You need to look at a lectern to use this command!"), false);
+        return null;
+    }
+
+    /**
+     * Renders a live board again after its book changed, then writes only what changed into its maps. Runs on the server thread.
+     */
+    static void updateLive(LiveBoards.Board board, ServerLevel world, List<String> pages, String key) {
+        var server = world.getServer();
+        var job = RenderJob.create(board.getOwner(), board.getOwnerName());
+        // problems are only reported to the owner, and only while they are online
+        Consumer<String> messages = text -> {
+            var owner = server.getPlayerList().getPlayer(board.getOwner());
+            if (owner != null) Map.message(owner, text);
+        };
+        try {
+            RenderExecutor.submit(() -> {
+                job.advance(RenderJob.State.PREPARING);
+                return Map.prepare(messages, pages);
+            }).thenComposeAsync(prepared -> {
+                if (prepared.width() != board.getWidth() || prepared.height() != board.getHeight()) {
+                    throw new IllegalArgumentException("The size of a live board can't change, use /b2m unlink and generate it again!");
                 }
-            };
-            AtomicBoolean replaced = new AtomicBoolean(false);
-            effects.replaceAll(e -> {
-                if (e.effect().getIdentifier().equals("book-content")) {
-                    replaced.set(true);
-                    return new ConfiguredEffect(
-                            bookEffect,
-                            new ArrayList<>()
-                    );
+                var limit = Map.estimate(prepared).checkLimits();
+                if (!limit.isEmpty()) throw new IllegalArgumentException(limit);
+                // only busy from here on, the next check tries again
+                limit = Map.admit(job, prepared);
+                if (!limit.isEmpty()) throw new RejectedExecutionException(limit);
+                return Map.submitRender(job, messages, prepared);
+            }, server).thenAcceptAsync(tiles -> {
+                job.advance(RenderJob.State.COMMITTING);
+                int changed = Map.updateMaps(world, board.getMaps(), tiles);
+                Book2Map.LOGGER.debug("Updated {} of {} maps of live board at {}", changed, board.getMaps().size(), board.getLectern().toShortString());
+                job.finish(null);
+                LiveBoards.rendered(board, key);
+                board.setUpdating(false);
+            }, server).exceptionally(e -> {
+                var cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+                boolean broken;
+                if (cause instanceof RejectedExecutionException) {
+                    job.finish(cause);
+                    broken = false;
+                } else if (cause instanceof IllegalArgumentException) {
+                    job.finish(cause);
+                    messages.accept("§cCouldn't update the live board at " + board.getLectern().toShortString() + ": " + cause.getMessage());
+                    broken = true;
+                } else {
+                    Map.fail(job, messages, cause);
+                    // cancelled and timed out updates are tried again, broken books only once they change
+                    broken = job.getState() == RenderJob.State.FAILED;
                 }
-                return e;
+                // exceptionally runs where the failure happened, the board belongs to the server thread
+                server.execute(() -> {
+                    if (broken) board.setFailed(key);
+                    board.setUpdating(false);
+                });
+                return null;
             });
-            if (!replaced.get()) {
-                effects.add(new ConfiguredEffect(
-                        bookEffect,
-                        new ArrayList<>()
-                ));
-            }
+        } catch (RejectedExecutionException e) {
+            job.finish(e);
+            board.setUpdating(false);
+        }
+    }
 
-            player.sendSystemMessage(Component.literal("§6Font: §r" + font), false);
-            player.sendSystemMessage(Component.literal("§6Font size: §r" + lineSize), false);
-            player.sendSystemMessage(Component.literal("§6Font color: §rR" + color.getRed() + " G" + color.getGreen() + " B" + color.getBlue()), false);
-            player.sendSystemMessage(Component.literal("§6Width in blocks: §r" + (width/128)), false);
-            player.sendSystemMessage(Component.literal("§6Height in blocks: §r" + (width/128)), false);
-            player.sendSystemMessage(Component.literal("§6Left side offset: §r" + leftOffset), false);
-            player.sendSystemMessage(Component.literal("§6Top side offset: §r" + leftOffset), false);
-            player.sendSystemMessage(Component.literal("§6Use dithering: §r" + dither), false);
-            player.sendSystemMessage(Component.literal("§6Procedure (top to bottom): §r"), false);
-            for (ConfiguredEffect effect : effects) {
-                player.sendSystemMessage(Component.literal(" -> " + effect.effect().getIdentifier() + ", " + String.join(",", effect.data())), false);
+    /**
+     * Writes tiles into existing maps. Only the rectangle of each map that actually changed is copied and marked dirty,
+     * so players only receive the maps (and parts of maps) that look different. Returns how many maps changed.
+     */
+    private static int updateMaps(ServerLevel world, List<MapId> maps, Tiles tiles) {
+        int changed = 0;
+        for (int i = 0; i < maps.size(); i++) {
+            var data = world.getMapData(maps.get(i));
+            var colors = tiles.colors()[i];
+            if (data == null || Arrays.equals(data.colors, colors)) continue;
+
+            int minX = 128, minY = 128, maxX = -1, maxY = -1;
+            for (int y = 0; y < 128; y++) {
+                for (int x = 0; x < 128; x++) {
+                    if (data.colors[x + y * 128] != colors[x + y * 128]) {
+                        minX = Math.min(minX, x);
+                        maxX = Math.max(maxX, x);
+                        minY = Math.min(minY, y);
+                        maxY = y;
+                    }
+                }
+            }
+            for (int y = minY; y <= maxY; y++) {
+                System.arraycopy(colors, y * 128 + minX, data.colors, y * 128 + minX, maxX - minX + 1);
             }
-            player.sendSystemMessage(Component.literal("§6Generating..."), false);
+            // setting the corners again grows the dirty area of every player holding or seeing the map, and marks it for saving
+            data.setColor(minX, minY, colors[minY * 128 + minX]);
+            data.setColor(maxX, maxY, colors[maxY * 128 + maxX]);
+            changed++;
+        }
+        return changed;
+    }
 
-            BufferedImage m = new BufferedImage(finalWidth, finalHeight, BufferedImage.TYPE_4BYTE_ABGR);
-            try {
-                m = Map.compositeImage(player, new CanvasDimensions(finalWidth, finalHeight), effects);
-            } catch (Exception e) {
-                Book2Map.LOGGER.warn("Map.compositeImage() failed: {}", e.toString());
-                player.sendSystemMessage(Component.literal("§cFailed to generate map! Check your settings!"), false);
-                return;
+    private static PaletteCanvas draw(RenderJob job, Consumer<String> messages, PreparedRender prepared) {
+        var d = new CanvasDimensions(prepared.width(), prepared.height());
+        if (Map.isPaletteOnly(prepared.operations())) {
+            // flat colors only, no need for quantization or dithering
+            return Map.compositePalette(job, messages, d, prepared.operations());
+        }
+        var image = Map.compositeImage(job, messages, d, prepared.operations());
+        job.checkCancelled();
+        return Map.render(image, prepared.spec().dither(), prepared.width(), prepared.height());
+    }
+
+    /**
+     * Large renders are drawn one row of maps at a time, so memory use depends on the width of the wall instead of its area.
+     */
+    private static boolean isBanded(PreparedRender prepared) {
+        return prepared.height() % 128 == 0
+                && Mth.ceil(prepared.width() / 128.0d) * (prepared.height() / 128) >= Config.bandedMinMaps
+                && !Map.isPaletteOnly(prepared.operations());
+    }
+
+    private static Tiles drawBanded(RenderJob job, Consumer<String> messages, PreparedRender prepared) {
+        int width = prepared.width();
+        var d = new CanvasDimensions(width, prepared.height());
+        int columns = Mth.ceil(width / 128.0d);
+        int rows = prepared.height() / 128;
+        byte[][] colors = new byte[columns * rows][];
+        int[] hashes = new int[colors.length];
+
+        var band = new BufferedImage(width, 128, BufferedImage.TYPE_4BYTE_ABGR);
+        int[][] carry = prepared.spec().dither() ? new int[3][width] : null;
+        for (int row = 0; row < rows; row++) {
+            Map.drawBand(job, messages, prepared, band, row * 128);
+            var canvas = carry != null ? Quantizer.dither(band, carry) : Quantizer.quantize(band);
+            var tiles = Map.slice(canvas);
+            System.arraycopy(tiles.colors(), 0, colors, row * columns, columns);
+            System.arraycopy(tiles.hashes(), 0, hashes, row * columns, columns);
+        }
+        return Map.findDuplicates(columns, rows, colors, hashes);
+    }
+
+    /**
+     * Draws the 128 rows starting at offsetY into band, which is as wide as the render.
+     */
+    private static void drawBand(RenderJob job, Consumer<String> messages, PreparedRender prepared, BufferedImage band, int offsetY) {
+        int width = band.getWidth();
+        Graphics2D g = band.createGraphics();
+        g.translate(0, -offsetY);
+        g.clipRect(0, offsetY, width, 128);
+
+        // init, unless the first effect paints over all of it anyway
+        g.setBackground(Color.BLACK);
+        g.setColor(Color.BLACK);
+        if (!prepared.operations().getFirst().coversCanvas()) g.fillRect(0, offsetY, width, 128);
+
+        // user effects
+        String r;
+        for (PreparedEffect operation : prepared.operations()) {
+            job.checkCancelled();
+            r = operation.applyBand(band, offsetY, g);
+            // every band would report the same problem
+            if (!r.isEmpty() && offsetY == 0) {
+                messages.accept(ChatFormatting.RED + r);
             }
+        }
+        g.dispose();
+    }
 
-            BufferedImage finalM = m;
-            CompletableFuture.supplyAsync(() -> Map.render(finalM, finalDither, finalWidth, finalHeight)).thenAcceptAsync(mapImage -> {
-                var items = Map.toVanillaItems(mapImage, player.level());
-                Map.giveToPlayer(player, items, bundleLore, finalWidth, finalHeight);
-                player.sendSystemMessage(Component.literal("§6Done!"), false);
-            }, player.level().getServer());
+    /**
+     * Draws the render one band at a time and shrinks every band right away, so the full-size image never exists.
+     * The size is divided by a power of two, which keeps every band a whole number of rows in the preview,
+     * and bands are shrunk by averaging blocks of pixels, which doesn't reach into the neighbouring bands.
+     */
+    private static PaletteCanvas drawPreview(RenderJob job, Consumer<String> messages, PreparedRender prepared) {
+        int width = prepared.width();
+        int height = prepared.height();
+        int divisor = 1;
+        while (divisor < 128 && Math.max(width, height) / divisor > Config.previewMaxMaps * 128) {
+            divisor *= 2;
+        }
+        int previewWidth = Math.max(1, width / divisor);
+        int previewHeight = Math.max(1, height / divisor);
+
+        var preview = new BufferedImage(previewWidth, previewHeight, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = preview.createGraphics();
+        var band = new BufferedImage(width, 128, BufferedImage.TYPE_4BYTE_ABGR);
+        for (int offsetY = 0; offsetY < height; offsetY += 128) {
+            Map.drawBand(job, messages, prepared, band, offsetY);
+            var scaled = Resampler.shrink(band, divisor);
+            g.drawImage(scaled, 0, offsetY / divisor, null);
         }
-        else player.sendSystemMessage(Component.nullToEmpty("§6You need to hold a book to use this command!"), false);
+        g.dispose();
+        job.checkCancelled();
+        return prepared.spec().dither() ? Quantizer.dither(preview) : Quantizer.quantize(preview);
+    }
+
+    private static Void fail(RenderJob job, ServerPlayer player, Throwable e) {
+        return Map.fail(job, text -> Map.message(player, text), e);
+    }
+
+    private static Void fail(RenderJob job, Consumer<String> messages, Throwable e) {
+        var cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+        switch (job.finish(cause)) {
+            case CANCELLED -> messages.accept("§cJob #" + job.getId() + " was cancelled.");
+            case TIMED_OUT -> messages.accept("§cJob #" + job.getId() + " took too long and was stopped.");
+            default -> {
+                Book2Map.LOGGER.warn("Map generation failed: {}", cause.toString());
+                messages.accept("§cFailed to generate map! Check your settings!");
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Sends a message from any thread.
+     */
+    private static void message(ServerPlayer player, String text) {
+        player.level().getServer().execute(() -> player.sendSystemMessage(Component.literal(text), false));
     }
 
     public static void giveToPlayer(Player player, List<ItemStack> items, String loreText, int width, int height) {
@@ -439,11 +853,7 @@ public class Map {
             bundle.set(DataComponents.BUNDLE_CONTENTS, new BundleContents(items.stream().map(ItemStackTemplate::fromNonEmptyStack).toList()));
             bundle.set(DataComponents.LORE, new ItemLore(List.of(Component.literal(loreText), Component.literal("Use this bundle on a wall of item frames!").withColor(TextColor.GOLD))));
             bundle.set(DataComponents.CUSTOM_NAME, Component.literal("Converted Book").withStyle(ChatFormatting.GOLD));
-            CompoundTag n = new CompoundTag();
-            n.putBoolean("image2map:quick_place", true);
-            n.putInt("image2map:width", Mth.ceil(width / 128.0d));
-            n.putInt("image2map:height", Mth.ceil(height / 128.0d));
-            bundle.set(DataComponents.CUSTOM_DATA, CustomData.of(n));
+            new WallBundle(Mth.ceil(width / 128.0d), Mth.ceil(height / 128.0d)).writeTo(bundle);
             player.addItem(bundle);
         }
     }
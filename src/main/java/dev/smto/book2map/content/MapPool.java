@@ -0,0 +1,359 @@
+package dev.smto.book2map.content;
+
+import dev.smto.book2map.Book2Map;
+import net.jpountz.lz4.LZ4BlockInputStream;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.List;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+import net.minecraft.nbt.CompoundTag;
+import net.minecraft.nbt.ListTag;
+import net.minecraft.nbt.NbtAccounter;
+import net.minecraft.nbt.NbtIo;
+import net.minecraft.nbt.NumericTag;
+import net.minecraft.nbt.Tag;
+import net.minecraft.server.MinecraftServer;
+import net.minecraft.server.level.ServerLevel;
+import net.minecraft.world.level.saveddata.maps.MapId;
+import net.minecraft.world.level.storage.LevelResource;
+
+/**
+ * Finds generated maps that nothing refers to anymore and hands their ids out again.
+ * <p>
+ * A scan saves the world and then reads every region, entity and player file on a background thread, collecting
+ * every map id stored in an item anywhere (item frames, inventories, containers, bundles and so on).
+ * Maps in the render cache, the tile index or a live board are always kept. Only maps that were unreferenced in two
+ * scans in a row are reclaimed by {@link MapPool#compact}, which deletes their files and puts their ids into the pool.
+ * Everything except the scan itself runs on the server thread.
+ */
+public class MapPool {
+    private static final Pattern MAP_FILE = Pattern.compile("map_(\\d+)\\.dat");
+    private static final Pattern REGION_FILE = Pattern.compile("r\\.(-?\\d+)\\.(-?\\d+)\\.mca");
+
+    public record Report(int generated, int referenced, int orphaned, int confirmed, long orphanedBytes, boolean complete, long finished) {}
+
+    private static final ArrayDeque<MapId> FREE = new ArrayDeque<>();
+    private static Path file = null;
+    // ids were taken since the pool was last saved
+    private static boolean dirty = false;
+    // orphans of the last scan, with their files
+    private static java.util.Map<Integer, Path> orphans = new HashMap<>();
+    // orphans that were already orphaned in the scan before
+    private static Set<Integer> confirmed = new HashSet<>();
+    private static Report report = null;
+    private static volatile Scan scan = null;
+
+    private static class Scan {
+        private volatile int done = 0;
+        private volatile int total = 0;
+        private volatile boolean stopped = false;
+    }
+
+    /**
+     * Returns a recycled map id, or null if the pool is empty. The pool is saved by {@link MapPool#flush}.
+     */
+    public static MapId take(ServerLevel world) {
+        MapPool.load(world.getServer());
+        var id = MapPool.FREE.poll();
+        if (id != null) MapPool.dirty = true;
+        return id;
+    }
+
+    /**
+     * Saves the pool if ids were taken from it. Called once a commit is over.
+     */
+    public static void flush() {
+        if (!MapPool.dirty) return;
+        MapPool.dirty = false;
+        MapPool.save();
+    }
+
+    public static int getFree(MinecraftServer server) {
+        MapPool.load(server);
+        return MapPool.FREE.size();
+    }
+
+    public static Report getReport() {
+        return MapPool.report;
+    }
+
+    /**
+     * Returns how far the running scan is, as done and total files, or null if there is none.
+     */
+    public static int[] getProgress() {
+        var current = MapPool.scan;
+        return current == null ? null : new int[] { current.done, current.total };
+    }
+
+    /**
+     * Saves the world and starts a scan in the background. Returns false if one is running already.
+     */
+    public static boolean startScan(MinecraftServer server) {
+        if (MapPool.scan != null) return false;
+        MapPool.load(server);
+        // references only count once they are on disk
+        server.saveEverything(true, false, true);
+
+        var roots = MapPool.getRoots(server);
+        var current = new Scan();
+        MapPool.scan = current;
+        var root = server.getWorldPath(LevelResource.ROOT);
+        var thread = new Thread(() -> {
+            Report result;
+            var found = new HashMap<Integer, Path>();
+            try {
+                result = MapPool.run(current, root, roots, found);
+            } catch (Exception e) {
+                Book2Map.LOGGER.error("Error while scanning for unused maps: {}", e.toString());
+                result = null;
+            }
+            var finalResult = result;
+            server.execute(() -> {
+                if (MapPool.scan != current) return;
+                MapPool.scan = null;
+                if (finalResult == null) return;
+                var previous = MapPool.orphans.keySet();
+                MapPool.confirmed = new HashSet<>(found.keySet());
+                MapPool.confirmed.retainAll(previous);
+                MapPool.orphans = found;
+                MapPool.report = new Report(finalResult.generated(), finalResult.referenced(), finalResult.orphaned(),
+                        MapPool.confirmed.size(), finalResult.orphanedBytes(), finalResult.complete(), finalResult.finished());
+            });
+        }, "book2map-map-scan");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+        return true;
+    }
+
+    /**
+     * Deletes the maps that were unreferenced in the last two scans and makes their ids available again. Returns how many were reclaimed.
+     */
+    public static int compact(MinecraftServer server) {
+        if (MapPool.scan != null || MapPool.report == null || !MapPool.report.complete()) return 0;
+        MapPool.load(server);
+        var roots = MapPool.getRoots(server);
+        var files = new ArrayList<Path>();
+        var ids = new ArrayList<MapId>();
+        for (int id : MapPool.confirmed) {
+            var mapId = new MapId(id);
+            if (roots.contains(mapId) || MapPool.FREE.contains(mapId)) continue;
+            var path = MapPool.orphans.remove(id);
+            if (path == null) continue;
+            ids.add(mapId);
+            files.add(path);
+        }
+        MapPool.confirmed = new HashSet<>();
+        var target = MapPool.file;
+        // ids are only handed out once their old file is gone, a late delete would take the file of a new map with it
+        RenderCache.IO.execute(() -> {
+            var deleted = new ArrayList<MapId>();
+            for (int i = 0; i < files.size(); i++) {
+                try {
+                    Files.deleteIfExists(files.get(i));
+                    deleted.add(ids.get(i));
+                } catch (Exception e) {
+                    Book2Map.LOGGER.error("Error while deleting unused map: {}", e.toString());
+                }
+            }
+            server.execute(() -> {
+                // the world was unloaded in the meantime
+                if (MapPool.file != target) return;
+                MapPool.FREE.addAll(deleted);
+                MapPool.save();
+            });
+        });
+        return files.size();
+    }
+
+    /**
+     * Called when the server stops.
+     */
+    public static void unload() {
+        var current = MapPool.scan;
+        if (current != null) current.stopped = true;
+        MapPool.scan = null;
+        MapPool.FREE.clear();
+        MapPool.file = null;
+        MapPool.dirty = false;
+        MapPool.orphans = new HashMap<>();
+        MapPool.confirmed = new HashSet<>();
+        MapPool.report = null;
+    }
+
+    private static Set<MapId> getRoots(MinecraftServer server) {
+        var roots = new HashSet<>(RenderCache.getMaps(server));
+        roots.addAll(TileIndex.getMaps());
+        LiveBoards.getAll(server).forEach(board -> roots.addAll(board.getMaps()));
+        return roots;
+    }
+
+    private static Report run(Scan scan, Path root, Set<MapId> roots, java.util.Map<Integer, Path> orphans) throws IOException {
+        var maps = new ArrayList<Path>();
+        var sources = new ArrayList<Path>();
+        try (var files = Files.walk(root)) {
+            files.filter(Files::isRegularFile).forEach(path -> {
+                var name = path.getFileName().toString();
+                var parent = path.getParent().getFileName().toString();
+                if (MapPool.MAP_FILE.matcher(name).matches()) {
+                    maps.add(path);
+                } else if (name.endsWith(".mca") && (parent.equals("region") || parent.equals("entities"))) {
+                    sources.add(path);
+                } else if (name.endsWith(".dat") && parent.equals("playerdata")) {
+                    sources.add(path);
+                }
+            });
+        }
+        scan.total = maps.size() + sources.size();
+
+        // generated maps and their size on disk
+        var generated = new HashMap<Integer, Path>();
+        long bytes = 0;
+        for (Path path : maps) {
+            if (scan.stopped) return null;
+            try {
+                var tag = NbtIo.readCompressed(path, NbtAccounter.unlimitedHeap());
+                var dimension = tag.getCompound("data").flatMap(data -> data.getString("dimension")).orElse("");
+                if (dimension.equals("image2map:generated")) {
+                    var matcher = MapPool.MAP_FILE.matcher(path.getFileName().toString());
+                    if (matcher.matches()) generated.put(Integer.parseInt(matcher.group(1)), path);
+                }
+            } catch (Exception e) {
+                Book2Map.LOGGER.warn("Skipping unreadable map file {}: {}", path.getFileName(), e.toString());
+            }
+            scan.done++;
+        }
+
+        // everything that can hold an item
+        var referenced = new HashSet<Integer>();
+        boolean complete = true;
+        for (Path path : sources) {
+            if (scan.stopped) return null;
+            try {
+                if (path.getFileName().toString().endsWith(".mca")) {
+                    MapPool.scanRegion(path, referenced);
+                } else {
+                    MapPool.collect(NbtIo.readCompressed(path, NbtAccounter.unlimitedHeap()), "", "", referenced);
+                }
+            } catch (Exception e) {
+                // a file we can't read might refer to any map
+                Book2Map.LOGGER.warn("Couldn't read {} while scanning for unused maps: {}", path, e.toString());
+                complete = false;
+            }
+            scan.done++;
+        }
+
+        int used = 0;
+        for (var entry : generated.entrySet()) {
+            if (referenced.contains(entry.getKey()) || roots.contains(new MapId(entry.getKey()))) {
+                used++;
+                continue;
+            }
+            orphans.put(entry.getKey(), entry.getValue());
+            bytes += Files.size(entry.getValue());
+        }
+        return new Report(generated.size(), used, orphans.size(), 0, bytes, complete, System.currentTimeMillis());
+    }
+
+    /**
+     * Reads every chunk of a region file, see the Anvil format: a table of 1024 chunk locations, then the chunks in 4 KiB sectors.
+     */
+    private static void scanRegion(Path path, Set<Integer> referenced) throws IOException {
+        var matcher = MapPool.REGION_FILE.matcher(path.getFileName().toString());
+        try (var region = new RandomAccessFile(path.toFile(), "r")) {
+            if (region.length() < 4096) return;
+            var header = new byte[4096];
+            region.readFully(header);
+            for (int i = 0; i < 1024; i++) {
+                int location = (header[i * 4] & 0xFF) << 24 | (header[i * 4 + 1] & 0xFF) << 16 | (header[i * 4 + 2] & 0xFF) << 8 | (header[i * 4 + 3] & 0xFF);
+                long offset = (long) (location >>> 8) * 4096;
+                if (offset == 0 || offset + 5 > region.length()) continue;
+                region.seek(offset);
+                int length = region.readInt();
+                int type = region.readUnsignedByte();
+                byte[] data;
+                if ((type & 0x80) != 0) {
+                    // too large for the region file, stored next to it
+                    if (!matcher.matches()) throw new IOException("Unexpected region file name");
+                    int x = Integer.parseInt(matcher.group(1)) * 32 + (i & 31);
+                    int z = Integer.parseInt(matcher.group(2)) * 32 + (i >> 5);
+                    data = Files.readAllBytes(path.resolveSibling("c." + x + "." + z + ".mcc"));
+                } else {
+                    if (length <= 1 || offset + 4 + length > region.length()) continue;
+                    data = new byte[length - 1];
+                    region.readFully(data);
+                }
+                InputStream in = switch (type & 0x7F) {
+                    case 1 -> new GZIPInputStream(new ByteArrayInputStream(data));
+                    case 2 -> new InflaterInputStream(new ByteArrayInputStream(data));
+                    case 3 -> new ByteArrayInputStream(data);
+                    case 4 -> new LZ4BlockInputStream(new ByteArrayInputStream(data));
+                    default -> throw new IOException("Unknown chunk compression " + type);
+                };
+                try (var input = new DataInputStream(new BufferedInputStream(in))) {
+                    MapPool.collect(NbtIo.read(input, NbtAccounter.unlimitedHeap()), "", "", referenced);
+                }
+            }
+        }
+    }
+
+    /**
+     * Collects map ids from items, both as components ("minecraft:map_id") and in the old format that chunks keep until they are loaded again (tag.map).
+     */
+    private static void collect(Tag tag, String key, String parentKey, Set<Integer> referenced) {
+        switch (tag) {
+            case CompoundTag compound -> {
+                for (String child : compound.keySet()) {
+                    MapPool.collect(compound.get(child), child, key, referenced);
+                }
+            }
+            case ListTag list -> {
+                for (Tag element : list) {
+                    MapPool.collect(element, key, parentKey, referenced);
+                }
+            }
+            case NumericTag number -> {
+                if (key.equals("minecraft:map_id") || (key.equals("map") && parentKey.equals("tag"))) {
+                    referenced.add(number.intValue());
+                }
+            }
+            default -> {}
+        }
+    }
+
+    private static void load(MinecraftServer server) {
+        if (MapPool.file != null) return;
+        MapPool.file = server.getWorldPath(LevelResource.ROOT).resolve(Book2Map.MOD_ID).resolve("free_maps.txt");
+        if (!Files.exists(MapPool.file)) return;
+        try {
+            for (String line : Files.readAllLines(MapPool.file)) {
+                if (line.isBlank()) continue;
+                for (String id : line.split(",")) {
+                    MapPool.FREE.add(new MapId(Integer.parseInt(id.trim())));
+                }
+            }
+        } catch (Exception e) {
+            Book2Map.LOGGER.error("Error while loading free maps: {}", e.toString());
+        }
+    }
+
+    private static void save() {
+        var target = MapPool.file;
+        var ids = new StringJoiner(",");
+        MapPool.FREE.forEach(id -> ids.add(String.valueOf(id.id())));
+        var lines = List.of(ids.toString());
+        RenderCache.IO.execute(() -> {
+            try {
+                Files.createDirectories(target.getParent());
+                Files.write(target, lines);
+            } catch (Exception e) {
+                Book2Map.LOGGER.error("Error while saving free maps: {}", e.toString());
+            }
+        });
+    }
+}
@@ -0,0 +1,91 @@
+package dev.smto.book2map.content;
+
+import dev.smto.book2map.Config;
+import dev.smto.book2map.api.PaletteCanvas;
+import eu.pb4.mapcanvas.api.core.CombinedPlayerCanvas;
+import eu.pb4.mapcanvas.api.core.DrawableCanvas;
+import eu.pb4.mapcanvas.api.utils.VirtualDisplay;
+import net.minecraft.core.BlockPos;
+import net.minecraft.core.Direction;
+import net.minecraft.resources.ResourceKey;
+import net.minecraft.server.MinecraftServer;
+import net.minecraft.server.level.ServerPlayer;
+import net.minecraft.util.Mth;
+import net.minecraft.world.level.Level;
+import net.minecraft.world.phys.Vec3;
+
+import java.util.HashMap;
+import java.util.UUID;
+
+/**
+ * Previews shown with /b2m preview. They are map-canvas canvases in invisible virtual item frames, which only exist
+ * as packets sent to one player, so nothing is written to the world's map storage.
+ * A preview is removed when its player walks away, changes dimension, leaves or asks for a new one.
+ */
+public class Previews {
+    // blocks the player may move away from where the preview was shown
+    private static final double MAX_DISTANCE = 8;
+    private static final java.util.Map<UUID, Preview> PREVIEWS = new HashMap<>();
+
+    private record Preview(CombinedPlayerCanvas canvas, VirtualDisplay display, ResourceKey<Level> dimension, Vec3 origin, long expires) {
+        void destroy() {
+            this.display.destroy();
+            this.canvas.destroy();
+        }
+    }
+
+    /**
+     * Shows the image in front of the player, facing them. Runs on the server thread.
+     */
+    public static void show(ServerPlayer player, PaletteCanvas image) {
+        Previews.remove(player.getUUID());
+        int columns = Mth.ceil(image.getWidth() / 128.0d);
+        int rows = Mth.ceil(image.getHeight() / 128.0d);
+        var canvas = DrawableCanvas.create(columns, rows);
+        // centered, like the tiles of a real render
+        int left = (columns * 128 - image.getWidth()) / 2;
+        int top = (rows * 128 - image.getHeight()) / 2;
+        for (int y = 0; y < image.getHeight(); y++) {
+            for (int x = 0; x < image.getWidth(); x++) {
+                canvas.setRaw(left + x, top + y, image.getRaw(x, y));
+            }
+        }
+
+        // a wall a few blocks ahead, its top left corner as seen by the player
+        var look = player.getDirection();
+        var center = BlockPos.containing(player.getEyePosition()).relative(look, 3);
+        var corner = center.relative(look.getClockWise(), -(columns / 2)).relative(Direction.UP, rows / 2);
+        var display = VirtualDisplay.builder(canvas, corner, look.getOpposite()).invisible().build();
+        canvas.addPlayer(player);
+        display.addPlayer(player);
+
+        long expires = player.level().getServer().getTickCount() + Config.previewSeconds * 20L;
+        Previews.PREVIEWS.put(player.getUUID(), new Preview(canvas, display, player.level().dimension(), player.position(), expires));
+    }
+
+    public static void remove(UUID player) {
+        var preview = Previews.PREVIEWS.remove(player);
+        if (preview != null) preview.destroy();
+    }
+
+    public static void tick(MinecraftServer server) {
+        if (Previews.PREVIEWS.isEmpty()) return;
+        Previews.PREVIEWS.entrySet().removeIf(entry -> {
+            var preview = entry.getValue();
+            var player = server.getPlayerList().getPlayer(entry.getKey());
+            if (player == null
+                    || server.getTickCount() >= preview.expires()
+                    || player.level().dimension() != preview.dimension()
+                    || player.position().distanceToSqr(preview.origin()) > Previews.MAX_DISTANCE * Previews.MAX_DISTANCE) {
+                preview.destroy();
+                return true;
+            }
+            return false;
+        });
+    }
+
+    public static void clear() {
+        Previews.PREVIEWS.values().forEach(Preview::destroy);
+        Previews.PREVIEWS.clear();
+    }
+}
@@ -0,0 +1,177 @@
+package dev.smto.book2map.content;
+
+import dev.smto.book2map.api.PaletteCanvas;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.stream.IntStream;
+
+/**
+ * Converts images to map colors in parallel.
+ * Output only depends on the input, never on the number of threads or their scheduling.
+ */
+public class Quantizer {
+    // rows handled by one parallel task, small enough that a single 128 pixel band still spreads over all cores
+    private static final int ROWS_PER_TASK = 16;
+    // how often (in pixels) a dithered row publishes its position, must be a power of two
+    private static final int PROGRESS_STEP = 16;
+
+    public static PaletteCanvas quantize(BufferedImage image) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int[] argb = Quantizer.toArgb(image);
+        var canvas = new PaletteCanvas(width, height);
+        byte[] data = canvas.getData();
+        IntStream.range(0, Quantizer.bands(height)).parallel().forEach(band -> {
+            int end = Math.min(height, (band + 1) * Quantizer.ROWS_PER_TASK) * width;
+            for (int i = band * Quantizer.ROWS_PER_TASK * width; i < end; i++) {
+                data[i] = ColorLookup.nearestARGB(argb[i]);
+            }
+        });
+        return canvas;
+    }
+
+    /**
+     * Floyd-Steinberg dithering, giving exactly the same result as a single pass over the whole image, so there are no seams.
+     * <p>
+     * Rows are processed as a pipeline: workers claim rows in order, and a row only advances while the row above is
+     * at least three pixels ahead of it. That way every pixel has received all of its error before it is quantized,
+     * and two rows never write to the same pixel at the same time. Error is kept as integers scaled by 16,
+     * so the order in which contributions arrive can't change the result.
+     */
+    public static PaletteCanvas dither(BufferedImage image) {
+        return Quantizer.dither(image, null);
+    }
+
+    /**
+     * Dithers one horizontal band of a larger image. carry holds the error (red, green and blue, scaled by 16) the band above
+     * diffused into the first row of this band, and receives the error for the band below. Bands dithered in order
+     * give exactly the same result as dithering the whole image at once.
+     */
+    public static PaletteCanvas dither(BufferedImage image, int[][] carry) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int[] argb = Quantizer.toArgb(image);
+        var canvas = new PaletteCanvas(width, height);
+        byte[] data = canvas.getData();
+
+        // accumulated channel values * 16, with an extra row for the error carried to the next band
+        int rows = carry == null ? height : height + 1;
+        int[] red = new int[width * rows];
+        int[] green = new int[width * rows];
+        int[] blue = new int[width * rows];
+        if (carry != null) {
+            System.arraycopy(carry[0], 0, red, 0, width);
+            System.arraycopy(carry[1], 0, green, 0, width);
+            System.arraycopy(carry[2], 0, blue, 0, width);
+        }
+        IntStream.range(0, Quantizer.bands(height)).parallel().forEach(band -> {
+            int end = Math.min(height, (band + 1) * Quantizer.ROWS_PER_TASK) * width;
+            for (int i = band * Quantizer.ROWS_PER_TASK * width; i < end; i++) {
+                red[i] += ((argb[i] >> 16) & 0xFF) << 4;
+                green[i] += ((argb[i] >> 8) & 0xFF) << 4;
+                blue[i] += (argb[i] & 0xFF) << 4;
+            }
+        });
+
+        var nextRow = new AtomicInteger();
+        var progress = new AtomicIntegerArray(height);
+        int workers = Math.min(height, Runtime.getRuntime().availableProcessors());
+        IntStream.range(0, workers).parallel().forEach(unused -> {
+            int y;
+            while ((y = nextRow.getAndIncrement()) < height) {
+                Quantizer.ditherRow(argb, red, green, blue, data, width, rows, y, progress);
+            }
+        });
+
+        if (carry != null) {
+            System.arraycopy(red, height * width, carry[0], 0, width);
+            System.arraycopy(green, height * width, carry[1], 0, width);
+            System.arraycopy(blue, height * width, carry[2], 0, width);
+        }
+        return canvas;
+    }
+
+    private static void ditherRow(int[] argb, int[] red, int[] green, int[] blue, byte[] data, int width, int rows, int y, AtomicIntegerArray progress) {
+        boolean hasNextRow = y + 1 < rows;
+        int above = y == 0 ? width : progress.get(y - 1);
+        for (int x = 0; x < width; x++) {
+            int needed = Math.min(width, x + 3);
+            while (above < needed) {
+                Thread.onSpinWait();
+                above = progress.get(y - 1);
+            }
+            if ((x & (Quantizer.PROGRESS_STEP - 1)) == 0) {
+                progress.set(y, x);
+            }
+
+            int i = x + y * width;
+            if ((argb[i] >>> 24) == 0) {
+                data[i] = 0;
+                continue;
+            }
+            int r = Quantizer.channel(red[i]);
+            int g = Quantizer.channel(green[i]);
+            int b = Quantizer.channel(blue[i]);
+            byte color = ColorLookup.nearest((r << 16) | (g << 8) | b);
+            data[i] = color;
+
+            int rgb = ColorLookup.getRgb(color);
+            int er = r - ((rgb >> 16) & 0xFF);
+            int eg = g - ((rgb >> 8) & 0xFF);
+            int eb = b - (rgb & 0xFF);
+            if (er == 0 && eg == 0 && eb == 0) continue;
+
+            if (x + 1 < width) {
+                red[i + 1] += er * 7;
+                green[i + 1] += eg * 7;
+                blue[i + 1] += eb * 7;
+            }
+            if (hasNextRow) {
+                int below = i + width;
+                if (x > 0) {
+                    red[below - 1] += er * 3;
+                    green[below - 1] += eg * 3;
+                    blue[below - 1] += eb * 3;
+                }
+                red[below] += er * 5;
+                green[below] += eg * 5;
+                blue[below] += eb * 5;
+                if (x + 1 < width) {
+                    red[below + 1] += er;
+                    green[below + 1] += eg;
+                    blue[below + 1] += eb;
+                }
+            }
+        }
+        progress.set(y, width);
+    }
+
+    private static int channel(int accumulated) {
+        return Math.max(0, Math.min(255, Math.floorDiv(accumulated + 8, 16)));
+    }
+
+    private static int bands(int size) {
+        return (size + Quantizer.ROWS_PER_TASK - 1) / Quantizer.ROWS_PER_TASK;
+    }
+
+    /**
+     * Reads the whole image as ARGB. Images that already are TYPE_INT_ARGB are returned without copying, do not modify the result.
+     */
+    static int[] toArgb(BufferedImage image) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        if (image.getType() == BufferedImage.TYPE_INT_ARGB) {
+            return ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+        }
+        int[] argb = new int[width * height];
+        IntStream.range(0, Quantizer.bands(height)).parallel().forEach(band -> {
+            int y = band * Quantizer.ROWS_PER_TASK;
+            int rows = Math.min(Quantizer.ROWS_PER_TASK, height - y);
+            image.getRGB(0, y, width, rows, argb, y * width, width);
+        });
+        return argb;
+    }
+}
@@ -0,0 +1,142 @@
+package dev.smto.book2map.content;
+
+import dev.smto.book2map.Book2Map;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.*;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import net.minecraft.server.MinecraftServer;
+import net.minecraft.server.level.ServerLevel;
+import net.minecraft.world.level.saveddata.maps.MapId;
+import net.minecraft.world.level.storage.LevelResource;
+
+/**
+ * Remembers which maps were generated for a given input, so generating the same book with the same settings again
+ * only hands out new items for the existing maps. Entries are kept least-recently-used and stored in the world folder.
+ */
+public class RenderCache {
+    private static final int MAX_ENTRIES = 2048;
+
+    public record Entry(int width, int height, List<MapId> maps) {}
+
+    private static final LinkedHashMap<String, Entry> ENTRIES = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(java.util.Map.Entry<String, Entry> eldest) {
+            return this.size() > RenderCache.MAX_ENTRIES;
+        }
+    };
+    static final ExecutorService IO = Executors.newSingleThreadExecutor(r -> {
+        var thread = new Thread(r, "book2map-io");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private static Path file = null;
+
+    /**
+     * Hashes all parts of the input into a cache key.
+     */
+    public static String key(List<String> parts) {
+        try {
+            var digest = MessageDigest.getInstance("SHA-256");
+            for (String part : parts) {
+                digest.update(part.getBytes(StandardCharsets.UTF_8));
+                digest.update((byte) 0);
+            }
+            return HexFormat.of().formatHex(digest.digest());
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Returns the cached maps for this key, as long as all of them still exist.
+     */
+    public static synchronized Entry get(ServerLevel world, String key) {
+        RenderCache.load(world.getServer());
+        var entry = RenderCache.ENTRIES.get(key);
+        if (entry == null) return null;
+        for (MapId id : entry.maps()) {
+            if (world.getMapData(id) == null) {
+                RenderCache.ENTRIES.remove(key);
+                RenderCache.save();
+                return null;
+            }
+        }
+        return entry;
+    }
+
+    public static synchronized void put(ServerLevel world, String key, Entry entry) {
+        RenderCache.load(world.getServer());
+        RenderCache.ENTRIES.put(key, entry);
+        RenderCache.save();
+    }
+
+    /**
+     * Returns every map some entry points to. These maps are kept by {@link MapPool} even if no item refers to them.
+     */
+    public static synchronized Set<MapId> getMaps(MinecraftServer server) {
+        RenderCache.load(server);
+        var maps = new HashSet<MapId>();
+        RenderCache.ENTRIES.values().forEach(entry -> maps.addAll(entry.maps()));
+        return maps;
+    }
+
+    /**
+     * Forgets all entries, for when fonts or textures may have changed. The maps themselves stay in the world.
+     */
+    public static synchronized void clear() {
+        RenderCache.ENTRIES.clear();
+        if (RenderCache.file != null) RenderCache.save();
+    }
+
+    /**
+     * Called when the server stops, so a different world doesn't see these entries.
+     */
+    public static synchronized void unload() {
+        RenderCache.ENTRIES.clear();
+        RenderCache.file = null;
+    }
+
+    private static void load(MinecraftServer server) {
+        if (RenderCache.file != null) return;
+        RenderCache.file = server.getWorldPath(LevelResource.ROOT).resolve(Book2Map.MOD_ID).resolve("render_cache.txt");
+        if (!Files.exists(RenderCache.file)) return;
+        try {
+            // stored least recently used first, so inserting in order restores the access order
+            for (String line : Files.readAllLines(RenderCache.file)) {
+                var parts = line.split(" ");
+                if (parts.length != 4) continue;
+                var maps = new ArrayList<MapId>();
+                for (String id : parts[3].split(",")) {
+                    maps.add(new MapId(Integer.parseInt(id)));
+                }
+                RenderCache.ENTRIES.put(parts[0], new Entry(Integer.parseInt(parts[1]), Integer.parseInt(parts[2]), List.copyOf(maps)));
+            }
+        } catch (Exception e) {
+            Book2Map.LOGGER.error("Error while loading render cache: {}", e.toString());
+        }
+    }
+
+    private static void save() {
+        var target = RenderCache.file;
+        var lines = new ArrayList<String>();
+        RenderCache.ENTRIES.forEach((key, entry) -> {
+            var ids = new StringJoiner(",");
+            entry.maps().forEach(id -> ids.add(String.valueOf(id.id())));
+            lines.add(key + " " + entry.width() + " " + entry.height() + " " + ids);
+        });
+        RenderCache.IO.execute(() -> {
+            try {
+                Files.createDirectories(target.getParent());
+                Files.write(target, lines);
+            } catch (Exception e) {
+                Book2Map.LOGGER.error("Error while saving render cache: {}", e.toString());
+            }
+        });
+    }
+}
@@ -0,0 +1,69 @@
+package dev.smto.book2map.content;
+
+import dev.smto.book2map.Config;
+import net.minecraft.util.Mth;
+
+/**
+ * Rough prediction of what a render will need, used for admission control and /b2m estimate.
+ * Times are ballpark figures for a typical desktop core, only meant to tell small jobs from huge ones.
+ */
+public record RenderCost(int width, int height, long pixels, long tiles, long peakBytes, long estimatedMillis) {
+    // nanoseconds per pixel
+    private static final double EFFECT_IMAGE_NS = 4;
+    private static final double EFFECT_PALETTE_NS = 1;
+    private static final double QUANTIZE_NS = 6;
+    private static final double DITHER_NS = 25;
+    // microseconds per committed tile
+    private static final double COMMIT_US = 60;
+
+    public static RenderCost of(int width, int height, boolean dither, boolean paletteOnly, boolean banded, int effects) {
+        long pixels = (long) width * height;
+        long tiles = (long) Mth.ceil(width / 128.0d) * Mth.ceil(height / 128.0d);
+        int threads = Config.renderThreads;
+
+        long peakBytes = tiles * 128 * 128 * 2;
+        // banded renders only hold one row of maps at a time
+        long bufferPixels = banded ? (long) width * 128 : pixels;
+        double nanos;
+        if (paletteOnly) {
+            // palette canvas, then tiles
+            peakBytes += pixels;
+            nanos = pixels * effects * RenderCost.EFFECT_PALETTE_NS;
+        } else {
+            // composited image, its ARGB copy and the palette canvas
+            peakBytes += bufferPixels * (4 + 4 + 1);
+            nanos = pixels * effects * RenderCost.EFFECT_IMAGE_NS;
+            if (dither) {
+                // accumulated error, one int per channel
+                peakBytes += bufferPixels * 12;
+                nanos += pixels * RenderCost.DITHER_NS / threads;
+            } else nanos += pixels * RenderCost.QUANTIZE_NS / threads;
+        }
+
+        // commits are limited by the per-tick budget
+        double commitMicros = tiles * RenderCost.COMMIT_US;
+        double commitTicks = Math.ceil(commitMicros / Config.commitBudgetMicros);
+        long millis = Math.round(nanos / 1_000_000 + commitTicks * 50);
+        return new RenderCost(width, height, pixels, tiles, peakBytes, millis);
+    }
+
+    public long peakMegabytes() {
+        return Mth.ceil(this.peakBytes / (1024.0d * 1024.0d));
+    }
+
+    /**
+     * Returns why this render is not allowed, or an empty string if it is.
+     */
+    public String checkLimits() {
+        if (this.width <= 0 || this.height <= 0 || this.tiles <= 0 || this.peakBytes <= 0) {
+            return "This size isn't valid!";
+        }
+        if (this.tiles > Config.maxTilesPerJob) {
+            return "This would need " + this.tiles + " maps, but at most " + Config.maxTilesPerJob + " are allowed!";
+        }
+        if (this.peakMegabytes() > Config.maxRenderMemoryMb) {
+            return "This would need about " + this.peakMegabytes() + " MB of memory, but at most " + Config.maxRenderMemoryMb + " MB are allowed!";
+        }
+        return "";
+    }
+}
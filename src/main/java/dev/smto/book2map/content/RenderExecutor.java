@@ -0,0 +1,53 @@
+package dev.smto.book2map.content;
+
+import dev.smto.book2map.Config;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Runs render work away from the server thread. Parallel streams inside a job (resampling, quantization, slicing)
+ * run on the same pool, so render-threads limits all of it. At most render-threads + render-queue jobs are accepted at once.
+ */
+public class RenderExecutor {
+    private static final AtomicInteger THREAD_COUNTER = new AtomicInteger();
+    private static final ForkJoinPool POOL = new ForkJoinPool(Config.renderThreads, pool -> {
+        var thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+        thread.setName("book2map-render-" + RenderExecutor.THREAD_COUNTER.incrementAndGet());
+        thread.setPriority(Thread.NORM_PRIORITY - 1);
+        return thread;
+    }, null, false);
+    private static final AtomicInteger PENDING = new AtomicInteger();
+
+    /**
+     * Applies changed config values.
+     */
+    public static void reconfigure() {
+        if (RenderExecutor.POOL.getParallelism() != Config.renderThreads) {
+            RenderExecutor.POOL.setParallelism(Config.renderThreads);
+        }
+    }
+
+    /**
+     * @throws RejectedExecutionException if the queue is full
+     */
+    public static <T> CompletableFuture<T> submit(Supplier<T> task) {
+        if (RenderExecutor.PENDING.incrementAndGet() > Config.renderThreads + Config.renderQueue) {
+            RenderExecutor.PENDING.decrementAndGet();
+            throw new RejectedExecutionException("Render queue is full");
+        }
+        try {
+            return CompletableFuture.supplyAsync(task, RenderExecutor.POOL).whenComplete((r, e) -> RenderExecutor.PENDING.decrementAndGet());
+        } catch (RejectedExecutionException e) {
+            RenderExecutor.PENDING.decrementAndGet();
+            throw e;
+        }
+    }
+
+    public static int getPending() {
+        return RenderExecutor.PENDING.get();
+    }
+}
@@ -0,0 +1,164 @@
+package dev.smto.book2map.content;
+
+import dev.smto.book2map.Config;
+
+import java.util.*;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import net.minecraft.server.level.ServerPlayer;
+
+/**
+ * One map generation, from reading the book to handing out the items. Work checks {@link RenderJob#checkCancelled()}
+ * between steps, which stops the job once it was cancelled or has run past its deadline.
+ */
+public class RenderJob {
+    public enum State {
+        QUEUED,
+        PREPARING,
+        RENDERING,
+        COMMITTING,
+        DONE,
+        FAILED,
+        CANCELLED,
+        TIMED_OUT;
+
+        public boolean isFinished() {
+            return this.ordinal() >= State.DONE.ordinal();
+        }
+    }
+
+    private static final AtomicInteger NEXT_ID = new AtomicInteger(1);
+    private static final ConcurrentHashMap<Integer, RenderJob> JOBS = new ConcurrentHashMap<>();
+
+    private final int id;
+    private final UUID owner;
+    private final String ownerName;
+    private final long started;
+    private final long deadline;
+    private volatile State state = State.QUEUED;
+    private volatile boolean cancelled = false;
+    private volatile RenderCost cost = null;
+
+    private RenderJob(UUID owner, String ownerName) {
+        this.id = RenderJob.NEXT_ID.getAndIncrement();
+        this.owner = owner;
+        this.ownerName = ownerName;
+        this.started = System.nanoTime();
+        this.deadline = this.started + Config.jobTimeoutSeconds * 1_000_000_000L;
+    }
+
+    public static RenderJob create(ServerPlayer player) {
+        return RenderJob.create(player.getUUID(), player.getName().getString());
+    }
+
+    /**
+     * For work nobody asked for directly, like updating a live board.
+     */
+    public static RenderJob create(UUID owner, String ownerName) {
+        var job = new RenderJob(owner, ownerName);
+        RenderJob.JOBS.put(job.id, job);
+        return job;
+    }
+
+    public static RenderJob get(int id) {
+        return RenderJob.JOBS.get(id);
+    }
+
+    public static List<RenderJob> getAll() {
+        var jobs = new ArrayList<>(RenderJob.JOBS.values());
+        jobs.sort(Comparator.comparingInt(RenderJob::getId));
+        return jobs;
+    }
+
+    public static List<RenderJob> getJobs(UUID owner) {
+        return RenderJob.getAll().stream().filter(job -> job.owner.equals(owner)).toList();
+    }
+
+    /**
+     * Memory predicted for all jobs that were admitted to rendering and haven't finished yet.
+     */
+    public static long getAdmittedMegabytes() {
+        long total = 0;
+        for (RenderJob job : RenderJob.JOBS.values()) {
+            var cost = job.cost;
+            if (cost != null) total += cost.peakMegabytes();
+        }
+        return total;
+    }
+
+    public static void cancelAll(UUID owner) {
+        RenderJob.getJobs(owner).forEach(RenderJob::cancel);
+    }
+
+    public int getId() {
+        return this.id;
+    }
+
+    public UUID getOwner() {
+        return this.owner;
+    }
+
+    public String getOwnerName() {
+        return this.ownerName;
+    }
+
+    public State getState() {
+        return this.state;
+    }
+
+    public RenderCost getCost() {
+        return this.cost;
+    }
+
+    public void setCost(RenderCost cost) {
+        this.cost = cost;
+    }
+
+    public long getRuntimeMillis() {
+        return (System.nanoTime() - this.started) / 1_000_000;
+    }
+
+    /**
+     * Moves the job to the next step, unless it should stop.
+     */
+    public void advance(State state) {
+        this.checkCancelled();
+        this.state = state;
+    }
+
+    public void cancel() {
+        this.cancelled = true;
+    }
+
+    /**
+     * The deadline only covers rendering: once the job is committing, its maps are partly registered already
+     * and throwing the finished render away would only leave them behind.
+     *
+     * @throws CancellationException if the job was cancelled or its deadline has passed
+     */
+    public void checkCancelled() {
+        if (this.cancelled) {
+            throw new CancellationException("Job " + this.id + " was cancelled");
+        }
+        if (this.state != State.COMMITTING && System.nanoTime() - this.deadline > 0) {
+            this.cancelled = true;
+            this.state = State.TIMED_OUT;
+            throw new CancellationException("Job " + this.id + " ran out of time");
+        }
+    }
+
+    /**
+     * Marks the job as finished and forgets it. Returns the final state.
+     */
+    public State finish(Throwable error) {
+        if (error == null) {
+            this.state = State.DONE;
+        } else if (this.state != State.TIMED_OUT) {
+            this.state = this.cancelled ? State.CANCELLED : State.FAILED;
+        }
+        RenderJob.JOBS.remove(this.id);
+        return this.state;
+    }
+}
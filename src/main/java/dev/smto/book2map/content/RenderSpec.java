@@ -0,0 +1,164 @@
+package dev.smto.book2map.content;
+
+import dev.smto.book2map.api.ConfiguredEffect;
+
+import java.awt.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Everything a render depends on, read from a book in one pass. Immutable, so equal books compare and hash equal.
+ * pages only holds the text, the settings page is split off.
+ */
+public record RenderSpec(List<String> pages, String font, int fontSize, int leftOffset, int topOffset, int color,
+                         int width, int height, boolean dither, boolean antialiasing, List<ConfiguredEffect> effects) {
+    private static final int MAX_BLOCKS = 10000;
+
+    public RenderSpec {
+        pages = List.copyOf(pages);
+        effects = effects.stream().map(e -> new ConfiguredEffect(e.effect(), List.copyOf(e.data()))).toList();
+    }
+
+    /**
+     * Reads the settings from the book. Problems with single settings are passed to messages, the rest of the book is still used.
+     */
+    public static RenderSpec parse(List<String> bookPages, Consumer<String> messages) {
+        // defaults
+        String font = Fonts.getDefaultFont();
+        int width = 256;
+        int height = 256;
+        int lineSize = 20;
+        int leftOffset = 8;
+        int topOffset = 10;
+        boolean dither = false;
+        boolean aa = true;
+        Color color = Color.WHITE;
+        var effects = new ArrayList<ConfiguredEffect>();
+        effects.add(new ConfiguredEffect(CompositeEffects.BACKGROUND_RANDOM, List.of("brown")));
+        effects.add(new ConfiguredEffect(CompositeEffects.FRAME, List.of("black")));
+        boolean presetSettings = true;
+
+        // check for custom settings
+        var pages = new ArrayList<>(bookPages);
+        var t2 = String.join("\n", pages).split("book2map");
+        if (t2.length == 1) {
+            t2 = String.join("\n", pages).split("b2m");
+        }
+        String settingsPage = "";
+        if (t2.length > 1) {
+            settingsPage = "book2map\n" + t2[1].trim();
+            pages.clear();
+            pages.add(t2[0].trim());
+        }
+        var settings = new ArrayList<>(List.of(settingsPage.split("\n")));
+        if (settings.getFirst().trim().equals("book2map")) {
+            messages.accept("§6Using custom settings from book!");
+            settings.removeFirst();
+            for (String s : settings) {
+                var line = s.trim().split(":");
+                if (line[0].startsWith("!") || line[0].startsWith("#")) {
+                    continue;
+                }
+                if (line.length == 2) {
+                    switch (line[0]) {
+                        case "font", "font-name", "fontname", "f" -> {
+                            font = line[1];
+                        }
+                        case "size", "font-size", "fontsize", "s" -> {
+                            try {
+                                lineSize = Integer.parseInt(line[1]);
+                            } catch (Exception ignored) {}
+                        }
+                        case "top", "top-offset", "topoffset", "t" -> {
+                            try {
+                                topOffset = Integer.parseInt(line[1]);
+                            } catch (Exception ignored) {}
+                        }
+                        case "dither", "d" -> {
+                            dither = line[1].trim().equals("true") || line[1].trim().equals("yes") || line[1].trim().equals("1");
+                        }
+                        case "aa", "a", "anti-aliasing", "antialiasing" -> {
+                            aa = !line[1].trim().equals("false") && !line[1].trim().equals("off") && !line[1].trim().equals("0");
+                        }
+                        case "width", "w" -> {
+                            try {
+                                width = RenderSpec.blocks(Integer.parseInt(line[1].trim()), messages) * 128;
+                            } catch (Exception ignored) {}
+                        }
+                        case "height", "h" -> {
+                            try {
+                                height = RenderSpec.blocks(Integer.parseInt(line[1].trim()), messages) * 128;
+                            } catch (Exception ignored) {}
+                        }
+                        case "left", "left-offset", "leftoffset", "l" -> {
+                            try {
+                                leftOffset = Integer.parseInt(line[1]);
+                            } catch (Exception ignored) {}
+                        }
+                        case "color", "textcolor", "text-color", "font-color", "fontcolor", "c" -> {
+                            try {
+                                color = Colors.fromString(line[1]);
+                            } catch (Exception ignored) {}
+                        }
+                        case "effect", "e" -> {
+                            if (presetSettings) {
+                                effects.clear();
+                                presetSettings = false;
+                            }
+                            try {
+                                if (line[1].trim().contains(",")) {
+                                    String effect = line[1].trim().split(",")[0];
+                                    String arguments = line[1].trim().replace(effect, "");
+                                    arguments = arguments.substring(1);
+                                    effects.add(new ConfiguredEffect(
+                                            CompositeEffects.get(effect),
+                                            List.of(arguments.split(","))
+                                    ));
+                                } else {
+                                    effects.add(ConfiguredEffect.unconfigured(CompositeEffects.get(line[1])));
+                                }
+                            } catch (Exception ignored) {
+                                messages.accept("§cInvalid effect settings: " + line[1].trim());
+                            }
+                        }
+                    }
+                }
+            }
+        }
+        return new RenderSpec(pages, font, lineSize, leftOffset, topOffset, color.getRGB(), width, height, dither, aa, effects);
+    }
+
+    /**
+     * Clamps a size in blocks, so the size in pixels can't overflow. A side longer than this could never pass
+     * the largest max-maps-per-job anyway.
+     */
+    private static int blocks(int blocks, Consumer<String> messages) {
+        if (blocks > RenderSpec.MAX_BLOCKS) {
+            messages.accept("§cSizes over " + RenderSpec.MAX_BLOCKS + " blocks aren't allowed, using " + RenderSpec.MAX_BLOCKS + "!");
+            return RenderSpec.MAX_BLOCKS;
+        }
+        return Math.max(1, blocks);
+    }
+
+    public Color textColor() {
+        return new Color(this.color, true);
+    }
+
+    /**
+     * Identifies this render in the render cache, also across restarts. Includes the modification times of the font
+     * and texture files it uses, so edited files aren't answered with old maps.
+     * Returns null if the render can't be reused, because an effect draws something different every time.
+     */
+    public String key() {
+        var parts = new ArrayList<>(List.of(String.join("\n", this.pages).strip(), this.font, String.valueOf(this.fontSize), String.valueOf(this.leftOffset),
+                String.valueOf(this.topOffset), String.valueOf(this.color), String.valueOf(this.width), String.valueOf(this.height), String.valueOf(this.dither), String.valueOf(this.antialiasing)));
+        parts.add(Fonts.getVersion(this.font));
+        for (ConfiguredEffect effect : this.effects) {
+            var dependencies = CompositeEffects.getDependencies(effect);
+            if (dependencies == null) return null;
+            parts.add(effect.effect().getIdentifier() + ":" + String.join(",", effect.data()).strip() + "@" + dependencies);
+        }
+        return RenderCache.key(parts);
+    }
+}
@@ -0,0 +1,231 @@
+package dev.smto.book2map.content;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.stream.IntStream;
+
+/**
+ * Resizes images on raw ARGB rasters, split into rows across all cores.
+ * Replaces {@link java.awt.Image#getScaledInstance}, which is single-threaded and very slow.
+ */
+public class Resampler {
+    public enum Filter {
+        NEAREST(0),
+        BILINEAR(1),
+        LANCZOS(3);
+
+        private final double support;
+
+        Filter(double support) {
+            this.support = support;
+        }
+
+        private double weight(double x) {
+            x = Math.abs(x);
+            return switch (this) {
+                case NEAREST -> x < 0.5 ? 1 : 0;
+                case BILINEAR -> x < 1 ? 1 - x : 0;
+                case LANCZOS -> x < 3 ? Resampler.sinc(x) * Resampler.sinc(x / 3) : 0;
+            };
+        }
+    }
+
+    /**
+     * Picks a filter based on the scale: nearest for whole-number upscaling (keeps pixel art crisp),
+     * lanczos for downscaling and bilinear for everything else.
+     */
+    public static BufferedImage resize(BufferedImage image, int width, int height) {
+        int srcWidth = image.getWidth();
+        int srcHeight = image.getHeight();
+        Filter filter;
+        if (width >= srcWidth && height >= srcHeight && width % srcWidth == 0 && height % srcHeight == 0) {
+            filter = Filter.NEAREST;
+        } else if (width <= srcWidth && height <= srcHeight) {
+            filter = Filter.LANCZOS;
+        } else filter = Filter.BILINEAR;
+        return Resampler.resize(image, width, height, filter);
+    }
+
+    /**
+     * Returns the image itself if it already has the requested size, otherwise a new TYPE_INT_ARGB image.
+     */
+    public static BufferedImage resize(BufferedImage image, int width, int height, Filter filter) {
+        int srcWidth = image.getWidth();
+        int srcHeight = image.getHeight();
+        if (srcWidth == width && srcHeight == height) {
+            return image;
+        }
+
+        var out = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        int[] dst = ((DataBufferInt) out.getRaster().getDataBuffer()).getData();
+        int[] src = image.getRGB(0, 0, srcWidth, srcHeight, null, 0, srcWidth);
+
+        if (filter == Filter.NEAREST) {
+            int[] columns = new int[width];
+            for (int x = 0; x < width; x++) {
+                columns[x] = Math.min(srcWidth - 1, (int) ((x + 0.5) * srcWidth / width));
+            }
+            IntStream.range(0, height).parallel().forEach(y -> {
+                int srcRow = Math.min(srcHeight - 1, (int) ((y + 0.5) * srcHeight / height)) * srcWidth;
+                int row = y * width;
+                for (int x = 0; x < width; x++) {
+                    dst[row + x] = src[srcRow + columns[x]];
+                }
+            });
+            return out;
+        }
+
+        // premultiplied, so transparent pixels don't bleed their color into neighbours
+        float[] premultiplied = new float[src.length * 4];
+        IntStream.range(0, srcHeight).parallel().forEach(y -> {
+            for (int i = y * srcWidth; i < (y + 1) * srcWidth; i++) {
+                int argb = src[i];
+                float a = (argb >>> 24) / 255f;
+                premultiplied[i * 4] = argb >>> 24;
+                premultiplied[i * 4 + 1] = ((argb >> 16) & 0xFF) * a;
+                premultiplied[i * 4 + 2] = ((argb >> 8) & 0xFF) * a;
+                premultiplied[i * 4 + 3] = (argb & 0xFF) * a;
+            }
+        });
+
+        // horizontal pass
+        var horizontal = Contributions.of(srcWidth, width, filter);
+        float[] temp = new float[width * srcHeight * 4];
+        IntStream.range(0, srcHeight).parallel().forEach(y -> {
+            int srcRow = y * srcWidth;
+            int row = y * width;
+            for (int x = 0; x < width; x++) {
+                float a = 0, r = 0, g = 0, b = 0;
+                int start = horizontal.start[x];
+                int offset = x * horizontal.stride;
+                for (int k = 0; k < horizontal.count[x]; k++) {
+                    float w = horizontal.weights[offset + k];
+                    int i = (srcRow + start + k) * 4;
+                    a += premultiplied[i] * w;
+                    r += premultiplied[i + 1] * w;
+                    g += premultiplied[i + 2] * w;
+                    b += premultiplied[i + 3] * w;
+                }
+                int i = (row + x) * 4;
+                temp[i] = a;
+                temp[i + 1] = r;
+                temp[i + 2] = g;
+                temp[i + 3] = b;
+            }
+        });
+
+        // vertical pass
+        var vertical = Contributions.of(srcHeight, height, filter);
+        IntStream.range(0, height).parallel().forEach(y -> {
+            int start = vertical.start[y];
+            int offset = y * vertical.stride;
+            for (int x = 0; x < width; x++) {
+                float a = 0, r = 0, g = 0, b = 0;
+                for (int k = 0; k < vertical.count[y]; k++) {
+                    float w = vertical.weights[offset + k];
+                    int i = ((start + k) * width + x) * 4;
+                    a += temp[i] * w;
+                    r += temp[i + 1] * w;
+                    g += temp[i + 2] * w;
+                    b += temp[i + 3] * w;
+                }
+                dst[y * width + x] = Resampler.pack(a, r, g, b);
+            }
+        });
+        return out;
+    }
+
+    /**
+     * Shrinks the image by a whole factor, every output pixel is the average of a factor x factor block.
+     * Unlike the filters above, nothing reaches beyond the block, so images shrunk in pieces line up without seams.
+     * The size has to be divisible by factor. Returns a new TYPE_INT_ARGB image, or the image itself for a factor of 1.
+     */
+    public static BufferedImage shrink(BufferedImage image, int factor) {
+        if (factor == 1) return image;
+        int srcWidth = image.getWidth();
+        int width = srcWidth / factor;
+        int height = image.getHeight() / factor;
+        var out = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        int[] dst = ((DataBufferInt) out.getRaster().getDataBuffer()).getData();
+        int[] src = image.getRGB(0, 0, srcWidth, image.getHeight(), null, 0, srcWidth);
+        float area = factor * factor;
+        IntStream.range(0, height).parallel().forEach(y -> {
+            for (int x = 0; x < width; x++) {
+                // premultiplied, like above
+                float a = 0, r = 0, g = 0, b = 0;
+                for (int sy = y * factor; sy < (y + 1) * factor; sy++) {
+                    for (int sx = x * factor; sx < (x + 1) * factor; sx++) {
+                        int argb = src[sy * srcWidth + sx];
+                        float alpha = argb >>> 24;
+                        a += alpha;
+                        r += ((argb >> 16) & 0xFF) * alpha / 255f;
+                        g += ((argb >> 8) & 0xFF) * alpha / 255f;
+                        b += (argb & 0xFF) * alpha / 255f;
+                    }
+                }
+                dst[y * width + x] = Resampler.pack(a / area, r / area, g / area, b / area);
+            }
+        });
+        return out;
+    }
+
+    private static int pack(float a, float r, float g, float b) {
+        int alpha = Resampler.clamp(a);
+        if (alpha == 0) return 0;
+        float scale = 255f / a;
+        return (alpha << 24) | (Resampler.clamp(r * scale) << 16) | (Resampler.clamp(g * scale) << 8) | Resampler.clamp(b * scale);
+    }
+
+    private static int clamp(float value) {
+        return Math.max(0, Math.min(255, Math.round(value)));
+    }
+
+    private static double sinc(double x) {
+        if (x == 0) return 1;
+        x *= Math.PI;
+        return Math.sin(x) / x;
+    }
+
+    /**
+     * Precomputed, normalized filter weights for every output pixel along one axis.
+     */
+    private record Contributions(int[] start, int[] count, float[] weights, int stride) {
+        static Contributions of(int srcSize, int dstSize, Filter filter) {
+            double scale = (double) dstSize / srcSize;
+            // widen the filter when downscaling so every source pixel contributes
+            double filterScale = Math.max(1.0, 1.0 / scale);
+            double support = filter.support * filterScale;
+            int stride = (int) Math.ceil(support) * 2 + 1;
+
+            int[] start = new int[dstSize];
+            int[] count = new int[dstSize];
+            float[] weights = new float[dstSize * stride];
+            for (int i = 0; i < dstSize; i++) {
+                double center = (i + 0.5) / scale;
+                int left = Math.max(0, (int) Math.floor(center - support));
+                int right = Math.min(srcSize, (int) Math.ceil(center + support));
+                right = Math.min(right, left + stride);
+
+                double total = 0;
+                for (int j = left; j < right; j++) {
+                    double w = filter.weight((j + 0.5 - center) / filterScale);
+                    weights[i * stride + j - left] = (float) w;
+                    total += w;
+                }
+                if (total != 0) {
+                    for (int j = 0; j < right - left; j++) {
+                        weights[i * stride + j] = (float) (weights[i * stride + j] / total);
+                    }
+                } else {
+                    // can only happen with degenerate sizes, fall back to the closest pixel
+                    left = Math.min(srcSize - 1, (int) center);
+                    right = left + 1;
+                    weights[i * stride] = 1;
+                }
+                start[i] = left;
+                count[i] = right - left;
+            }
+            return new Contributions(start, count, weights, stride);
+        }
+    }
+}
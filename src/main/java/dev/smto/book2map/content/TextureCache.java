@@ -0,0 +1,221 @@
+package dev.smto.book2map.content;
+
+import dev.smto.book2map.Book2Map;
+
+import javax.imageio.ImageIO;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Keeps decoded textures from {@link Book2Map#CONFIG_TEXTURES_DIR} in memory, together with scaled and tiled variants.
+ * Entries are evicted least-recently-used once the memory budget is exceeded and invalidated when their file changes.
+ * Returned images are shared and must not be modified.
+ */
+public class TextureCache {
+    private static final long MAX_BYTES = 128L * 1024 * 1024;
+
+    private enum Kind { DECODED, SCALED, TILED }
+
+    private record Key(String name, Kind kind, int width, int height, int multiplier) {}
+
+    private static final LinkedHashMap<Key, BufferedImage> ENTRIES = new LinkedHashMap<>(16, 0.75f, true);
+    private static final HashMap<String, Boolean> OPAQUE = new HashMap<>();
+    private static long usedBytes = 0;
+    private static Thread watcher = null;
+
+    public static synchronized void init() {
+        if (TextureCache.watcher != null) return;
+        TextureCache.watcher = new Thread(TextureCache::watch, "book2map-texture-watcher");
+        TextureCache.watcher.setDaemon(true);
+        TextureCache.watcher.start();
+    }
+
+    /**
+     * Returns the decoded texture, or null if there is no such file.
+     */
+    public static BufferedImage get(String name) throws IOException {
+        var key = new Key(name, Kind.DECODED, 0, 0, 0);
+        var image = TextureCache.lookup(key);
+        if (image != null) return image;
+
+        Path file = Path.of(Book2Map.CONFIG_TEXTURES_DIR.toString(), name + ".png");
+        if (!Files.exists(file)) return null;
+        var decoded = ImageIO.read(file.toFile());
+        if (decoded == null) throw new IOException("Unsupported image format: " + file.getFileName());
+        image = new BufferedImage(decoded.getWidth(), decoded.getHeight(), BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = image.createGraphics();
+        g.drawImage(decoded, 0, 0, null);
+        g.dispose();
+        return TextureCache.store(key, image);
+    }
+
+    /**
+     * Returns the texture resized to the given size, or null if there is no such file.
+     */
+    public static BufferedImage getScaled(String name, int width, int height) throws IOException {
+        var key = new Key(name, Kind.SCALED, width, height, 0);
+        var image = TextureCache.lookup(key);
+        if (image != null) return image;
+
+        var source = TextureCache.get(name);
+        if (source == null) return null;
+        var scaled = Resampler.resize(source, width, height);
+        if (scaled == source) return source;
+        return TextureCache.store(key, scaled);
+    }
+
+    /**
+     * Returns an image of the given size covered with copies of the texture (scaled by multiplier), starting at the top left corner.
+     * Returns null if there is no such file.
+     */
+    public static BufferedImage getTiled(String name, int multiplier, int width, int height) throws IOException {
+        var key = new Key(name, Kind.TILED, width, height, multiplier);
+        var image = TextureCache.lookup(key);
+        if (image != null) return image;
+
+        var source = TextureCache.get(name);
+        if (source == null) return null;
+        var tile = TextureCache.getScaled(name, source.getWidth() * multiplier, source.getHeight() * multiplier);
+        int tileWidth = tile.getWidth();
+        int tileHeight = tile.getHeight();
+        int[] tilePixels = Quantizer.toArgb(tile);
+
+        var out = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        int[] pixels = ((DataBufferInt) out.getRaster().getDataBuffer()).getData();
+        for (int y = 0; y < height; y++) {
+            int tileRow = (y % tileHeight) * tileWidth;
+            for (int x = 0; x < width; x += tileWidth) {
+                System.arraycopy(tilePixels, tileRow, pixels, y * width + x, Math.min(tileWidth, width - x));
+            }
+        }
+        return TextureCache.store(key, out);
+    }
+
+    /**
+     * Returns when the texture file was last changed, in milliseconds, or 0 if there is no such file.
+     */
+    public static long getModified(String name) {
+        try {
+            return Files.getLastModifiedTime(Path.of(Book2Map.CONFIG_TEXTURES_DIR.toString(), name + ".png")).toMillis();
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Returns whether every pixel of the texture is fully opaque, or false if there is no such file.
+     */
+    public static boolean isOpaque(String name) throws IOException {
+        synchronized (TextureCache.class) {
+            var known = TextureCache.OPAQUE.get(name);
+            if (known != null) return known;
+        }
+        var source = TextureCache.get(name);
+        if (source == null) return false;
+        boolean opaque = true;
+        for (int argb : Quantizer.toArgb(source)) {
+            if (argb >>> 24 != 0xFF) {
+                opaque = false;
+                break;
+            }
+        }
+        synchronized (TextureCache.class) {
+            TextureCache.OPAQUE.put(name, opaque);
+        }
+        return opaque;
+    }
+
+    public static synchronized void invalidate(String name) {
+        TextureCache.OPAQUE.remove(name);
+        var iterator = TextureCache.ENTRIES.entrySet().iterator();
+        while (iterator.hasNext()) {
+            var entry = iterator.next();
+            if (entry.getKey().name().equals(name)) {
+                TextureCache.usedBytes -= TextureCache.size(entry.getValue());
+                iterator.remove();
+            }
+        }
+    }
+
+    public static synchronized void clear() {
+        TextureCache.OPAQUE.clear();
+        TextureCache.ENTRIES.clear();
+        TextureCache.usedBytes = 0;
+    }
+
+    /**
+     * Drops everything and decodes all textures again in the background.
+     */
+    public static CompletableFuture<Void> warm() {
+        TextureCache.clear();
+        return CompletableFuture.runAsync(() -> {
+            try (var files = Files.list(Book2Map.CONFIG_TEXTURES_DIR)) {
+                for (Path file : files.toList()) {
+                    var fileName = file.getFileName().toString();
+                    if (!fileName.endsWith(".png")) continue;
+                    try {
+                        TextureCache.get(fileName.substring(0, fileName.length() - 4));
+                    } catch (Exception e) {
+                        Book2Map.LOGGER.error("Error while loading texture \"{}\": {}", fileName, e.toString());
+                    }
+                }
+            } catch (Exception e) {
+                Book2Map.LOGGER.error("Error while warming texture cache: {}", e.toString());
+            }
+        });
+    }
+
+    private static synchronized BufferedImage lookup(Key key) {
+        return TextureCache.ENTRIES.get(key);
+    }
+
+    private static synchronized BufferedImage store(Key key, BufferedImage image) {
+        long size = TextureCache.size(image);
+        if (size > TextureCache.MAX_BYTES) return image;
+        var previous = TextureCache.ENTRIES.put(key, image);
+        if (previous != null) TextureCache.usedBytes -= TextureCache.size(previous);
+        TextureCache.usedBytes += size;
+
+        var iterator = TextureCache.ENTRIES.entrySet().iterator();
+        while (TextureCache.usedBytes > TextureCache.MAX_BYTES && iterator.hasNext()) {
+            var eldest = iterator.next();
+            if (eldest.getKey().equals(key)) continue;
+            TextureCache.usedBytes -= TextureCache.size(eldest.getValue());
+            iterator.remove();
+        }
+        return image;
+    }
+
+    private static long size(BufferedImage image) {
+        return (long) image.getWidth() * image.getHeight() * 4;
+    }
+
+    private static void watch() {
+        try (var service = FileSystems.getDefault().newWatchService()) {
+            Book2Map.CONFIG_TEXTURES_DIR.register(service, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+            while (true) {
+                var key = service.take();
+                for (var event : key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        TextureCache.clear();
+                        continue;
+                    }
+                    var fileName = event.context().toString();
+                    if (fileName.endsWith(".png")) {
+                        TextureCache.invalidate(fileName.substring(0, fileName.length() - 4));
+                    }
+                }
+                if (!key.reset()) break;
+            }
+        } catch (InterruptedException ignored) {
+        } catch (Exception e) {
+            Book2Map.LOGGER.error("Error while watching texture directory: {}", e.toString());
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package dev.smto.book2map.content;
+
+import java.util.*;
+import java.util.List;
+import net.minecraft.server.level.ServerLevel;
+import net.minecraft.world.level.saveddata.maps.MapId;
+
+/**
+ * Finds generated maps by their content, so renders can share maps for identical tiles.
+ * Only hashes are kept in memory; candidates are compared against the stored map data before being reused.
+ */
+public class TileIndex {
+    private static final int MAX_ENTRIES = 65536;
+
+    private static final HashMap<Integer, List<MapId>> ENTRIES = new HashMap<>();
+    private static int size = 0;
+
+    /**
+     * Returns an existing map with exactly these colors. hash is {@link Arrays#hashCode(byte[])} of the colors.
+     */
+    public static synchronized MapId find(ServerLevel world, byte[] colors, int hash) {
+        var candidates = TileIndex.ENTRIES.get(hash);
+        if (candidates == null) return null;
+        var iterator = candidates.iterator();
+        while (iterator.hasNext()) {
+            var id = iterator.next();
+            var data = world.getMapData(id);
+            if (data == null) {
+                iterator.remove();
+                TileIndex.size--;
+            } else if (Arrays.equals(data.colors, colors)) {
+                return id;
+            }
+        }
+        return null;
+    }
+
+    public static synchronized void add(int hash, MapId id) {
+        if (TileIndex.size >= TileIndex.MAX_ENTRIES) {
+            TileIndex.ENTRIES.clear();
+            TileIndex.size = 0;
+        }
+        TileIndex.ENTRIES.computeIfAbsent(hash, k -> new ArrayList<>(1)).add(id);
+        TileIndex.size++;
+    }
+
+    /**
+     * Returns every indexed map, these may be handed out again at any time.
+     */
+    public static synchronized Set<MapId> getMaps() {
+        var maps = new HashSet<MapId>();
+        TileIndex.ENTRIES.values().forEach(maps::addAll);
+        return maps;
+    }
+
+    /**
+     * Called when the server stops, map ids only mean something in their own world.
+     */
+    public static synchronized void unload() {
+        TileIndex.ENTRIES.clear();
+        TileIndex.size = 0;
+    }
+}
@@ -0,0 +1,45 @@
+package dev.smto.book2map.content;
+
+import com.mojang.serialization.Codec;
+import com.mojang.serialization.DataResult;
+import com.mojang.serialization.MapCodec;
+import com.mojang.serialization.codecs.RecordCodecBuilder;
+import net.minecraft.core.component.DataComponents;
+import net.minecraft.nbt.CompoundTag;
+import net.minecraft.nbt.NbtOps;
+import net.minecraft.world.item.ItemStack;
+import net.minecraft.world.item.component.CustomData;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Size in maps of the wall a bundle places when used on an item frame. Stored like {@link WallTile}.
+ */
+public record WallBundle(int width, int height) {
+    public static final MapCodec<WallBundle> CODEC = RecordCodecBuilder.mapCodec(instance -> instance.group(
+            Codec.BOOL.validate(quickPlace -> quickPlace ? DataResult.success(true) : DataResult.error(() -> "Not a wall bundle")).fieldOf("image2map:quick_place").forGetter(bundle -> true),
+            Codec.INT.optionalFieldOf("image2map:width", 1).forGetter(WallBundle::width),
+            Codec.INT.optionalFieldOf("image2map:height", 1).forGetter(WallBundle::height)
+    ).apply(instance, (quickPlace, width, height) -> new WallBundle(width, height)));
+
+    /**
+     * Whether the stack is a wall bundle. Only checks for the key, so it's cheap enough for every inventory click.
+     */
+    public static boolean is(ItemStack stack) {
+        var data = stack.get(DataComponents.CUSTOM_DATA);
+        return data != null && data.contains("image2map:quick_place");
+    }
+
+    /**
+     * Returns the wall size of the bundle, or null if it isn't a wall bundle.
+     */
+    public static @Nullable WallBundle of(ItemStack stack) {
+        var data = stack.get(DataComponents.CUSTOM_DATA);
+        if (data == null || !data.contains("image2map:quick_place")) return null;
+        return data.read(WallBundle.CODEC).result().orElse(null);
+    }
+
+    public void writeTo(ItemStack stack) {
+        var tag = (CompoundTag) WallBundle.CODEC.codec().encodeStart(NbtOps.INSTANCE, this).getOrThrow();
+        CustomData.update(DataComponents.CUSTOM_DATA, stack, existing -> existing.merge(tag));
+    }
+}
@@ -0,0 +1,61 @@
+package dev.smto.book2map.content;
+
+import com.mojang.serialization.Codec;
+import com.mojang.serialization.MapCodec;
+import com.mojang.serialization.codecs.RecordCodecBuilder;
+import net.minecraft.core.Direction;
+import net.minecraft.core.component.DataComponents;
+import net.minecraft.nbt.CompoundTag;
+import net.minecraft.nbt.NbtOps;
+import net.minecraft.world.item.ItemStack;
+import net.minecraft.world.item.component.CustomData;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Optional;
+
+/**
+ * Where a map belongs in a wall of maps. The directions are only set once the map was placed by a bundle.
+ * <p>
+ * Stored in the custom data of the map with the keys image2map uses, so vanilla clients and image2map keep working with it.
+ * It is decoded straight from the stored tag, without copying it.
+ */
+public record WallTile(int x, int y, int width, int height, @Nullable Direction right, @Nullable Direction down, @Nullable Direction facing) {
+    public static final MapCodec<WallTile> CODEC = RecordCodecBuilder.mapCodec(instance -> instance.group(
+            Codec.INT.fieldOf("image2map:x").forGetter(WallTile::x),
+            Codec.INT.fieldOf("image2map:y").forGetter(WallTile::y),
+            Codec.INT.fieldOf("image2map:width").forGetter(WallTile::width),
+            Codec.INT.fieldOf("image2map:height").forGetter(WallTile::height),
+            Direction.CODEC.optionalFieldOf("image2map:right").forGetter(tile -> Optional.ofNullable(tile.right())),
+            Direction.CODEC.optionalFieldOf("image2map:down").forGetter(tile -> Optional.ofNullable(tile.down())),
+            Direction.CODEC.optionalFieldOf("image2map:facing").forGetter(tile -> Optional.ofNullable(tile.facing()))
+    ).apply(instance, (x, y, width, height, right, down, facing) -> new WallTile(x, y, width, height, right.orElse(null), down.orElse(null), facing.orElse(null))));
+
+    public WallTile(int x, int y, int width, int height) {
+        this(x, y, width, height, null, null, null);
+    }
+
+    /**
+     * Returns the wall position of the map, or null if the stack isn't part of a wall.
+     */
+    public static @Nullable WallTile of(ItemStack stack) {
+        var data = stack.get(DataComponents.CUSTOM_DATA);
+        if (data == null || !data.contains("image2map:x")) return null;
+        return data.read(WallTile.CODEC).result().orElse(null);
+    }
+
+    public boolean isPlaced() {
+        return this.right != null && this.down != null && this.facing != null;
+    }
+
+    public WallTile placed(Direction right, Direction down, Direction facing) {
+        return new WallTile(this.x, this.y, this.width, this.height, right, down, facing);
+    }
+
+    /**
+     * Writes this into the custom data of the stack, keeping anything else stored there.
+     */
+    public void writeTo(ItemStack stack) {
+        var tag = (CompoundTag) WallTile.CODEC.codec().encodeStart(NbtOps.INSTANCE, this).getOrThrow();
+        CustomData.update(DataComponents.CUSTOM_DATA, stack, existing -> existing.merge(tag));
+    }
+}
@@ -5,7 +5,7 @@ This mixin will only be applied if image2map is not loaded, as book2map behaves
 
 package dev.smto.book2map.mixin;
 
-import net.minecraft.core.component.DataComponents;
+import dev.smto.book2map.content.WallBundle;
 import net.minecraft.world.InteractionHand;
 import net.minecraft.world.InteractionResult;
 import net.minecraft.world.entity.SlotAccess;
@@ -14,7 +14,6 @@ import net.minecraft.world.inventory.ClickAction;
 import net.minecraft.world.inventory.Slot;
 import net.minecraft.world.item.BundleItem;
 import net.minecraft.world.item.ItemStack;
-import net.minecraft.world.item.component.CustomData;
 import net.minecraft.world.level.Level;
 import org.spongepowered.asm.mixin.Mixin;
 import org.spongepowered.asm.mixin.injection.At;
@@ -28,9 +27,8 @@ public class BundleItemMixin {
     private void use(Level world, Player user, InteractionHand hand,
                                      CallbackInfoReturnable<InteractionResult> cir) {
         ItemStack itemStack = user.getItemInHand(hand);
-        var tag = itemStack.getOrDefault(DataComponents.CUSTOM_DATA, CustomData.EMPTY).copyTag();
 
-        if (tag != null && tag.contains("image2map:quick_place") && !user.isCreative()) {
+        if (WallBundle.is(itemStack) && !user.isCreative()) {
             cir.setReturnValue(InteractionResult.FAIL);
             cir.cancel();
         }
@@ -39,9 +37,7 @@ public class BundleItemMixin {
     @Inject(method = "overrideStackedOnOther", at = @At("HEAD"), cancellable = true)
     private void onStackClicked(ItemStack bundle, Slot slot, ClickAction clickType, Player player,
                                           CallbackInfoReturnable<Boolean> cir) {
-        var tag = bundle.getOrDefault(DataComponents.CUSTOM_DATA, CustomData.EMPTY).copyTag();
-
-        if (tag != null && tag.contains("image2map:quick_place") && !player.isCreative()) {
+        if (WallBundle.is(bundle) && !player.isCreative()) {
             cir.setReturnValue(false);
             cir.cancel();
         }
@@ -51,8 +47,7 @@ public class BundleItemMixin {
     private void onClicked(ItemStack bundle, ItemStack otherStack, Slot slot, ClickAction clickType,
                                              Player player, SlotAccess cursorStackReference,
                                              CallbackInfoReturnable<Boolean> cir) {
-        var tag = bundle.getOrDefault(DataComponents.CUSTOM_DATA, CustomData.EMPTY).copyTag();
-        if (tag != null && tag.contains("image2map:quick_place") && !player.isCreative()) {
+        if (WallBundle.is(bundle) && !player.isCreative()) {
             cir.setReturnValue(false);
             cir.cancel();
         }
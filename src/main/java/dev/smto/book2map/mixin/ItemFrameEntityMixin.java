@@ -13,7 +13,11 @@ import org.spongepowered.asm.mixin.injection.Inject;
 import org.spongepowered.asm.mixin.injection.callback.CallbackInfo;
 import org.spongepowered.asm.mixin.injection.callback.CallbackInfoReturnable;
 
-import java.util.Arrays;
+import dev.smto.book2map.content.WallBundle;
+import dev.smto.book2map.content.WallTile;
+import java.util.HashMap;
+import java.util.Map;
+import net.minecraft.core.BlockPos;
 import net.minecraft.core.Direction;
 import net.minecraft.core.component.DataComponents;
 import net.minecraft.server.level.ServerLevel;
@@ -24,7 +28,8 @@ import net.minecraft.world.entity.decoration.ItemFrame;
 import net.minecraft.world.entity.player.Player;
 import net.minecraft.world.item.ItemStack;
 import net.minecraft.world.item.Items;
-import net.minecraft.world.item.component.CustomData;
+import net.minecraft.world.level.Level;
+import net.minecraft.world.level.levelgen.structure.BoundingBox;
 import net.minecraft.world.phys.AABB;
 import net.minecraft.world.phys.Vec3;
 
@@ -56,12 +61,12 @@ public class ItemFrameEntityMixin {
 
     private static boolean clickItemFrame(Player player, InteractionHand hand, ItemFrame itemFrameEntity) {
         var stack = player.getItemInHand(hand);
-        var stackNBT = stack.getOrDefault(DataComponents.CUSTOM_DATA, CustomData.EMPTY).copyTag();
-        if (!stackNBT.isEmpty() && stack.is(Items.BUNDLE) && stackNBT.getBoolean("image2map:quick_place").orElse(false)) {
+        var bundle = stack.is(Items.BUNDLE) ? WallBundle.of(stack) : null;
+        if (bundle != null) {
             var world = itemFrameEntity.level();
             var start = itemFrameEntity.blockPosition();
-            var width = stackNBT.getInt("image2map:width").orElse(1);
-            var height = stackNBT.getInt("image2map:height").orElse(1);
+            var width = bundle.width();
+            var height = bundle.height();
 
             var frames = new ItemFrame[width * height];
 
@@ -86,6 +91,7 @@ public class ItemFrameEntityMixin {
                 }
             }
 
+            var found = findFrames(world, start, right, down, width, height, facing);
             var mut = start.mutable();
 
             for (var x = 0; x < width; x++) {
@@ -93,27 +99,17 @@ public class ItemFrameEntityMixin {
                     mut.set(start);
                     mut.move(right, x);
                     mut.move(down, y);
-                    var entities = world.getEntitiesOfClass(ItemFrame.class, AABB.unitCubeFromLowerCorner(Vec3.atLowerCornerOf(mut)), (entity1) -> entity1.getDirection() == facing && entity1.blockPosition().equals(mut));
-                    if (!entities.isEmpty()) {
-                        frames[x + y * width] = entities.get(0);
-                    }
+                    frames[x + y * width] = found.get(mut);
                 }
             }
 
-
-
             for (var mapStack : stack.get(DataComponents.BUNDLE_CONTENTS).itemCopyStream().toList()) {
-                var map = mapStack.getOrDefault(DataComponents.CUSTOM_DATA, CustomData.EMPTY).copyTag();
-                //Book2Map.Logger.warn(map.toString());
-                if (!map.isEmpty()) {
-                    var x = map.getInt("image2map:x").orElse(1);
-                    var y = map.getInt("image2map:y").orElse(1);
-
-                    map.putString("image2map:right", right.getSerializedName());
-                    map.putString("image2map:down", down.getSerializedName());
-                    map.putString("image2map:facing", facing.getSerializedName());
+                var tile = WallTile.of(mapStack);
+                if (tile != null) {
+                    var x = tile.x();
+                    var y = tile.y();
 
-                    mapStack.set(DataComponents.CUSTOM_DATA,CustomData.of(map));
+                    tile.placed(right, down, facing).writeTo(mapStack);
 
                     var frame = frames[x + y * width];
 
@@ -136,22 +132,17 @@ public class ItemFrameEntityMixin {
     private static boolean destroyItemFrame(Entity player, ItemFrame itemFrameEntity) {
         //if (true) return false;
         var stack = itemFrameEntity.getItem();
-        var tag = stack.getOrDefault(DataComponents.CUSTOM_DATA, CustomData.EMPTY).copyTag();
+        var tile = stack.getItem() == Items.FILLED_MAP ? WallTile.of(stack) : null;
 
-        //Book2Map.Logger.error(tag.toString());
+        if (tile != null && tile.isPlaced()) {
+            var xo = tile.x();
+            var yo = tile.y();
+            var width = tile.width();
+            var height = tile.height();
 
-        String[] requiredTags = new String[] { "image2map:x", "image2map:y", "image2map:width", "image2map:height",
-                "image2map:right", "image2map:down", "image2map:facing" };
-
-        if (stack.getItem() == Items.FILLED_MAP && tag != null && Arrays.stream(requiredTags).allMatch(tag::contains)) {
-            var xo = tag.getInt("image2map:x").orElse(1);
-            var yo = tag.getInt("image2map:y").orElse(1);
-            var width = tag.getInt("image2map:width").orElse(1);
-            var height = tag.getInt("image2map:height").orElse(1);
-
-            Direction right = Direction.byName(tag.getString("image2map:right").orElse("north"));
-            Direction down = Direction.byName(tag.getString("image2map:down").orElse("down"));
-            Direction facing = Direction.byName(tag.getString("image2map:facing").orElse("north"));
+            Direction right = tile.right();
+            Direction down = tile.down();
+            Direction facing = tile.facing();
 
             var world = itemFrameEntity.level();
             var start = itemFrameEntity.blockPosition();
@@ -163,23 +154,12 @@ public class ItemFrameEntityMixin {
 
             start = mut.immutable();
 
-            for (var x = 0; x < width; x++) {
-                for (var y = 0; y < height; y++) {
-                    mut.set(start);
-                    mut.move(right, x);
-                    mut.move(down, y);
-                    var entities = world.getEntitiesOfClass(ItemFrame.class, AABB.unitCubeFromLowerCorner(Vec3.atLowerCornerOf(mut)),
-                            (entity1) -> entity1.getDirection() == facing && entity1.blockPosition().equals(mut));
-                    if (!entities.isEmpty()) {
-                        var frame = entities.get(0);
-
-                        // Only apply to frames that contain an image2map map
-                        var frameStack = frame.getItem();
-                        if (frameStack.getItem() == Items.FILLED_MAP && tag != null && Arrays.stream(requiredTags).allMatch(tag::contains)) {
-                            frame.setItem(ItemStack.EMPTY, true);
-                            frame.setInvisible(false);
-                        }
-                    }
+            for (var frame : findFrames(world, start, right, down, width, height, facing).values()) {
+                // Only apply to frames that contain an image2map map
+                var frameStack = frame.getItem();
+                if (frameStack.getItem() == Items.FILLED_MAP) {
+                    frame.setItem(ItemStack.EMPTY, true);
+                    frame.setInvisible(false);
                 }
             }
 
@@ -189,4 +169,20 @@ public class ItemFrameEntityMixin {
         return false;
     }
 
+    /**
+     * Finds the frames of a wall with a single entity query over its bounding box, by the block they are in.
+     * Only frames facing the same way as the wall count, the first one wins if a block has several.
+     */
+    private static Map<BlockPos, ItemFrame> findFrames(Level world, BlockPos start, Direction right, Direction down, int width, int height, Direction facing) {
+        var end = start.relative(right, width - 1).relative(down, height - 1);
+        var wall = BoundingBox.fromCorners(start, end);
+        var frames = new HashMap<BlockPos, ItemFrame>();
+        for (var frame : world.getEntitiesOfClass(ItemFrame.class, AABB.encapsulatingFullBlocks(start, end), (entity1) -> entity1.getDirection() == facing)) {
+            // the query also returns frames that only touch the wall from outside
+            if (wall.isInside(frame.blockPosition())) {
+                frames.putIfAbsent(frame.blockPosition(), frame);
+            }
+        }
+        return frames;
+    }
 }
\ No newline at end of file